@@ -0,0 +1,138 @@
+package com.betalpha;
+
+import com.betalpha.migration.Database;
+import com.betalpha.migration.MigrationRepository;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.QueryOptions;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.SpringApplication;
+
+import java.util.Arrays;
+
+/**
+ * Entry point of the packaged application. Before paying for the Spring Boot and Spring Cloud Config startup it
+ * checks whether there is anything to migrate at all: it scans the migration scripts for the latest version, reads
+ * the current version from the <code>schema_migration</code> table with a single query and exits if the keyspace is
+ * already up to date. Only if there is work left the full {@link CassandraMigrationApplication} context is started.
+ * <p>
+ * The connection settings are taken from <code>--key=value</code> arguments, system properties or environment
+ * variables (<code>cassandra.contactpoints</code> or <code>CASSANDRA_CONTACTPOINTS</code>). If they are not
+ * available locally, e.g. because they are served by the config server, the check is skipped and the full context
+ * is started right away, just like when no scripts are found. Commands like <code>baseline</code> always start the
+ * full context.
+ * <p>
+ * Exit codes: <code>0</code> the keyspace is up to date, <code>1</code> a migration is pending and
+ * <code>--check-only</code> was given, <code>2</code> the check failed and <code>--check-only</code> was given.
+ */
+public class CassandraMigrationLauncher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CassandraMigrationLauncher.class);
+
+    private static final String CHECK_ONLY_ARGUMENT = "--check-only";
+    private static final String CUSTOM_PROFILE = "custom";
+    private static final String DEFAULT_SERVER_SCRIPT_PATH = "/app/cassandra/migration";
+    private static final int DEFAULT_PORT = 9042;
+
+    private final String[] args;
+
+    private CassandraMigrationLauncher(String[] args) {
+        this.args = args;
+    }
+
+    public static void main(String[] args) {
+        boolean checkOnly = Arrays.asList(args).contains(CHECK_ONLY_ARGUMENT);
+        if (!checkOnly && Arrays.stream(args).anyMatch(arg -> !arg.startsWith("--"))) {
+            SpringApplication.run(CassandraMigrationApplication.class, args);
+            return;
+        }
+        CassandraMigrationLauncher launcher = new CassandraMigrationLauncher(args);
+        Boolean upToDate;
+        try {
+            upToDate = launcher.isUpToDate();
+        } catch (Exception exception) {
+            LOGGER.warn("Fast migration check failed, falling back to the full startup.", exception);
+            if (checkOnly) {
+                System.exit(2);
+            }
+            upToDate = null;
+        }
+        if (Boolean.TRUE.equals(upToDate)) {
+            System.exit(0);
+        }
+        if (checkOnly) {
+            System.exit(Boolean.FALSE.equals(upToDate) ? 1 : 2);
+        }
+        SpringApplication.run(CassandraMigrationApplication.class, args);
+    }
+
+    /**
+     * Compares the version of the keyspace with the latest script version.
+     *
+     * @return true if the keyspace is up to date, false if not and null if the check could not be done
+     *         with the locally available settings
+     * @throws Exception if reading the scripts or querying the database fails
+     */
+    private Boolean isUpToDate() throws Exception {
+        String contactPoints = property("cassandra.contactpoints");
+        String keyspace = property("cassandra.keyspace");
+        if (contactPoints == null || keyspace == null) {
+            LOGGER.info("No local cassandra settings, skipping the fast migration check.");
+            return null;
+        }
+        String port = property("cassandra.port");
+        String profiles = property("spring.profiles.active");
+        boolean custom = profiles != null && Arrays.asList(profiles.split(",")).contains(CUSTOM_PROFILE);
+        String scriptPath = custom ? MigrationRepository.DEFAULT_SCRIPT_PATH : defaultIfNull(
+                property("script.file.path"), DEFAULT_SERVER_SCRIPT_PATH);
+
+        int latestVersion = MigrationRepository.findLatestVersion(scriptPath, custom);
+        if (latestVersion == 0) {
+            // no scripts found where they were looked up, which says nothing about the keyspace
+            LOGGER.info("No migration scripts found in {}, skipping the fast migration check.", scriptPath);
+            return null;
+        }
+        int version;
+        int pendingData;
+        try (Cluster cluster = Cluster.builder()
+                .addContactPoints(contactPoints.trim().split("\\s*,\\s*"))
+                .withPort(port == null ? DEFAULT_PORT : Integer.parseInt(port))
+                .withQueryOptions(new QueryOptions().setMetadataEnabled(false))
+                .withoutJMXReporting()
+                .withoutMetrics()
+                .build();
+             Session session = cluster.connect(keyspace)) {
+            version = Database.queryVersion(session);
+            pendingData = Database.queryVersionsWithPendingData(session).size();
+        } catch (InvalidQueryException exception) {
+            LOGGER.info("No {} table in keyspace {}.", Database.getSchemaTableName(), keyspace);
+            version = 0;
+            pendingData = 0;
+        }
+        LOGGER.info("Keyspace {} is at version {}, latest script version is {}, {} versions with pending data.",
+                keyspace, version, latestVersion, pendingData);
+        return version >= latestVersion && pendingData == 0;
+    }
+
+    private String property(String key) {
+        String prefix = "--" + key + "=";
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) {
+                return arg.substring(prefix.length());
+            }
+        }
+        String value = System.getProperty(key);
+        if (value == null) {
+            value = System.getenv(key);
+        }
+        if (value == null) {
+            value = System.getenv(key.replace('.', '_').toUpperCase());
+        }
+        return value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+
+    private static String defaultIfNull(String value, String defaultValue) {
+        return value == null ? defaultValue : value;
+    }
+}
@@ -1,8 +1,11 @@
 package com.betalpha.command;
 
+import com.betalpha.driver.ClusterFactory;
+import com.betalpha.driver.DriverProperties;
 import com.betalpha.migration.Database;
 import com.betalpha.migration.MigrationRepository;
 import com.betalpha.migration.MigrationTask;
+import com.betalpha.migration.StatementRetry;
 import com.datastax.driver.core.Cluster;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
@@ -11,6 +14,12 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.stereotype.Component;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
 /**
  * Created by carlwang on 10/12/16.
  */
@@ -18,6 +27,16 @@ import org.springframework.stereotype.Component;
 @Slf4j
 @Data
 public class CassandraMigrationCommandService implements CommandLineRunner {
+    /**
+     * Argument that generates a baseline script instead of migrating.
+     */
+    private static final String BASELINE_COMMAND = "baseline";
+
+    /**
+     * Argument that exports the tables named by the following arguments into data files instead of migrating.
+     */
+    private static final String EXPORT_COMMAND = "export";
+
     @Value("${cassandra.contactpoints}")
     private String hostname;
 
@@ -27,16 +46,176 @@ public class CassandraMigrationCommandService implements CommandLineRunner {
     @Value("${cassandra.keyspace}")
     private String keyspace;
 
+    @Value("${migration.lease.enabled:true}")
+    private boolean leaseEnabled;
+
+    @Value("${migration.lease.ttl-seconds:60}")
+    private int leaseTtlSeconds;
+
+    @Value("${migration.lease.max-wait-seconds:3600}")
+    private long leaseMaxWaitSeconds;
+
+    @Value("${migration.lease.initial-backoff-millis:500}")
+    private long leaseInitialBackoffMillis;
+
+    @Value("${migration.lease.max-backoff-millis:15000}")
+    private long leaseMaxBackoffMillis;
+
+    @Value("${migration.insert.max-in-flight:64}")
+    private int insertMaxInFlight;
+
+    @Value("${migration.insert.batch-size:20}")
+    private int insertBatchSize;
+
+    @Value("${migration.retry.max-attempts:5}")
+    private int retryMaxAttempts;
+
+    @Value("${migration.retry.initial-backoff-millis:200}")
+    private long retryInitialBackoffMillis;
+
+    @Value("${migration.retry.max-backoff-millis:10000}")
+    private long retryMaxBackoffMillis;
+
+    @Value("${migration.backfill.parallelism:8}")
+    private int backfillParallelism;
+
+    @Value("${migration.backfill.page-size:1000}")
+    private int backfillPageSize;
+
+    @Value("${migration.data.skip-pending-versions:}")
+    private String skipPendingDataVersions;
+
+    @Value("${migration.baseline.enabled:false}")
+    private boolean baselineEnabled;
+
+    @Value("${migration.presort.spill-folder:/app/cassandra/sort}")
+    private String presortSpillFolder;
+
+    @Value("${migration.presort.memory-mb:256}")
+    private long presortMemoryMb;
+
+    @Value("${migration.presort.parallelism:4}")
+    private int presortParallelism;
+
+    @Value("${migration.progress.interval-seconds:30}")
+    private long progressIntervalSeconds;
+
+    @Value("${migration.tracing.sample-rate:0}")
+    private double tracingSampleRate;
+
+    @Value("${migration.tracing.slow-threshold-millis:0}")
+    private long tracingSlowThresholdMillis;
+
+    @Value("${migration.tracing.report-file:}")
+    private String tracingReportFile;
+
+    @Value("${migration.tracing.diagnostics-table:false}")
+    private boolean tracingDiagnosticsTable;
+
+    @Value("${migration.export.folder:export}")
+    private String exportFolder;
+
+    @Value("${migration.export.parallelism:16}")
+    private int exportParallelism;
+
+    @Value("${migration.export.page-size:5000}")
+    private int exportPageSize;
+
+    @Value("${migration.export.compress:false}")
+    private boolean exportCompress;
+
+    @Value("${migration.export.chunk-rows:0}")
+    private long exportChunkRows;
+
+    @Value("${migration.sstable.work-folder:/app/cassandra/sstable}")
+    private String sstableWorkFolder;
+
+    @Value("${migration.sstable.loader-command:sstableloader}")
+    private String sstableLoaderCommand;
+
+    @Value("${migration.sstable.buffer-size-mb:64}")
+    private int sstableBufferSizeMb;
+
+    @Value("${migration.sstable.writer-threads:2}")
+    private int sstableWriterThreads;
+
     @Autowired
     private MigrationRepository migrationRepository;
 
+    @Autowired
+    private DriverProperties driverProperties;
 
     @Override
     public void run(String... args) throws Exception {
-        Cluster cluster = new Cluster.Builder().addContactPoints(hostname).withPort(port).build();
-        Database database = new Database(cluster, keyspace);
-        MigrationTask migration = new MigrationTask(database, migrationRepository);
-        log.info("default migration folder:" + MigrationRepository.DEFAULT_SCRIPT_PATH);
-        migration.migrate();
+        Cluster cluster = ClusterFactory.build("migration-ddl", hostname, port, driverProperties.getDdl());
+        Cluster bulkCluster = ClusterFactory.build("migration-bulk", hostname, port, driverProperties.getBulk());
+        try {
+            Database database = new Database(cluster, bulkCluster, keyspace);
+            database.setInsertBatching(insertMaxInFlight, insertBatchSize);
+            database.setBackfillScan(backfillParallelism, backfillPageSize);
+            database.setRetry(new StatementRetry(retryMaxAttempts, retryInitialBackoffMillis, retryMaxBackoffMillis));
+            database.setSSTableLoading(new File(sstableWorkFolder), sstableLoaderCommand, sstableBufferSizeMb,
+                    sstableWriterThreads);
+            database.setPresort(new File(presortSpillFolder), presortMemoryMb * 1024 * 1024, presortParallelism);
+            if (Arrays.asList(args).contains(BASELINE_COMMAND)) {
+                writeBaseline(database);
+                return;
+            }
+            if (Arrays.asList(args).contains(EXPORT_COMMAND)) {
+                exportTables(database, args);
+                return;
+            }
+            database.enableTracing(tracingSampleRate, tracingSlowThresholdMillis,
+                    tracingReportFile.isEmpty() ? null : new File(tracingReportFile), tracingDiagnosticsTable);
+            database.enableProgress(progressIntervalSeconds * 1000);
+            MigrationTask migration = new MigrationTask(database, migrationRepository);
+            migration.setBaselineEnabled(baselineEnabled);
+            migration.setSkippedDataVersions(Arrays.stream(skipPendingDataVersions.split(","))
+                    .map(String::trim).filter(version -> !version.isEmpty())
+                    .map(Integer::valueOf).collect(Collectors.toSet()));
+            if (leaseEnabled) {
+                migration.useLease(database.createLease(leaseTtlSeconds), leaseMaxWaitSeconds * 1000,
+                        leaseInitialBackoffMillis, leaseMaxBackoffMillis);
+            }
+            log.info("default migration folder:" + MigrationRepository.DEFAULT_SCRIPT_PATH);
+            migration.migrate();
+        } finally {
+            // the database only closes its sessions, the clusters hold the connection pools and threads
+            cluster.close();
+            bulkCluster.close();
+        }
+    }
+
+    /**
+     * Exports the tables named after the export argument into data files.
+     */
+    private void exportTables(Database database, String... args) throws IOException {
+        List<String> tables = Arrays.stream(args).filter(arg -> !arg.startsWith("--"))
+                .filter(arg -> !EXPORT_COMMAND.equals(arg)).collect(Collectors.toList());
+        try {
+            if (tables.isEmpty()) {
+                log.warn("No tables to export, pass the table names after the export argument.");
+            }
+            for (String table : tables) {
+                List<File> files = database.exportData(table, new File(exportFolder), exportCompress,
+                        exportChunkRows, exportParallelism, exportPageSize);
+                log.info("Exported table {} of keyspace {} to {}.", table, keyspace, files);
+            }
+        } finally {
+            database.close();
+        }
+    }
+
+    /**
+     * Generates a baseline script from the current schema of the keyspace.
+     */
+    private void writeBaseline(Database database) throws IOException {
+        try {
+            int version = database.getVersion();
+            File file = migrationRepository.writeBaseline(version, database.exportBaseline());
+            log.info("Wrote baseline of keyspace {} at version {} to {}.", keyspace, version, file.getAbsolutePath());
+        } finally {
+            database.close();
+        }
     }
 }
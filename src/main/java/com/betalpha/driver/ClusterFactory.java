@@ -0,0 +1,111 @@
+package com.betalpha.driver;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.PoolingOptions;
+import com.datastax.driver.core.ProtocolOptions;
+import com.datastax.driver.core.SocketOptions;
+import com.datastax.driver.core.policies.ConstantSpeculativeExecutionPolicy;
+import com.datastax.driver.core.policies.DCAwareRoundRobinPolicy;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.datastax.driver.core.policies.NoSpeculativeExecutionPolicy;
+import com.datastax.driver.core.policies.RoundRobinPolicy;
+import com.datastax.driver.core.policies.TokenAwarePolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+import static com.betalpha.migration.util.Ensure.notNull;
+import static com.betalpha.migration.util.Ensure.notNullOrEmpty;
+
+/**
+ * Builds {@link Cluster} instances from a {@link DriverProfile}.
+ */
+public final class ClusterFactory {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClusterFactory.class);
+
+    /**
+     * System property read by the driver when it decides between the epoll and the NIO transport.
+     */
+    private static final String FORCE_NIO_PROPERTY = "com.datastax.driver.FORCE_NIO";
+
+    private ClusterFactory() {
+    }
+
+    /**
+     * Creates a new cluster for the given contact points using the settings of the profile.
+     *
+     * @param name          a name for the cluster instance, shows up in the driver logs and metrics
+     * @param contactPoints comma separated list of contact points
+     * @param port          the native transport port
+     * @param profile       the tuning profile to apply
+     * @return the cluster, not yet connected
+     */
+    public static Cluster build(String name, String contactPoints, int port, DriverProfile profile) {
+        notNullOrEmpty(contactPoints, "contactPoints");
+        notNull(profile, "profile");
+        if (!profile.isEpoll()) {
+            System.setProperty(FORCE_NIO_PROPERTY, "true");
+        }
+        LOGGER.info("Building cluster {} with profile {}.", name, profile);
+        return Cluster.builder()
+                .withClusterName(name)
+                .addContactPoints(splitContactPoints(contactPoints))
+                .withPort(port)
+                .withPoolingOptions(poolingOptions(profile))
+                .withSocketOptions(socketOptions(profile))
+                .withCompression(compression(profile))
+                .withLoadBalancingPolicy(loadBalancingPolicy(profile))
+                .withSpeculativeExecutionPolicy(profile.getSpeculativeDelayMillis() > 0
+                        ? new ConstantSpeculativeExecutionPolicy(profile.getSpeculativeDelayMillis(),
+                        profile.getSpeculativeMaxExecutions())
+                        : NoSpeculativeExecutionPolicy.INSTANCE)
+                .build();
+    }
+
+    private static String[] splitContactPoints(String contactPoints) {
+        return Arrays.stream(contactPoints.split(","))
+                .map(String::trim)
+                .filter(contactPoint -> !contactPoint.isEmpty())
+                .toArray(String[]::new);
+    }
+
+    private static PoolingOptions poolingOptions(DriverProfile profile) {
+        return new PoolingOptions()
+                .setConnectionsPerHost(HostDistance.LOCAL, profile.getCoreConnectionsPerHost(),
+                        Math.max(profile.getCoreConnectionsPerHost(), profile.getMaxConnectionsPerHost()))
+                .setMaxRequestsPerConnection(HostDistance.LOCAL, profile.getMaxRequestsPerConnection());
+    }
+
+    private static SocketOptions socketOptions(DriverProfile profile) {
+        return new SocketOptions()
+                .setConnectTimeoutMillis(profile.getConnectTimeoutMillis())
+                .setReadTimeoutMillis(profile.getReadTimeoutMillis())
+                .setTcpNoDelay(true)
+                .setKeepAlive(true);
+    }
+
+    private static ProtocolOptions.Compression compression(DriverProfile profile) {
+        String compression = profile.getCompression();
+        if (compression == null || compression.trim().isEmpty()) {
+            return ProtocolOptions.Compression.NONE;
+        }
+        return ProtocolOptions.Compression.valueOf(compression.trim().toUpperCase());
+    }
+
+    private static LoadBalancingPolicy loadBalancingPolicy(DriverProfile profile) {
+        LoadBalancingPolicy childPolicy;
+        if (profile.isDcAware()) {
+            DCAwareRoundRobinPolicy.Builder builder = DCAwareRoundRobinPolicy.builder()
+                    .withUsedHostsPerRemoteDc(profile.getUsedHostsPerRemoteDc());
+            if (profile.getLocalDc() != null && !profile.getLocalDc().trim().isEmpty()) {
+                builder.withLocalDc(profile.getLocalDc().trim());
+            }
+            childPolicy = builder.build();
+        } else {
+            childPolicy = new RoundRobinPolicy();
+        }
+        return profile.isTokenAware() ? new TokenAwarePolicy(childPolicy) : childPolicy;
+    }
+}
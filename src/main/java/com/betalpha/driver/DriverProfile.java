@@ -0,0 +1,71 @@
+package com.betalpha.driver;
+
+import lombok.Data;
+
+/**
+ * Tuning knobs for one {@link com.datastax.driver.core.Cluster} instance. The migration keeps two of them: one for
+ * the sessions that run schema changes and one for the sessions that push data, because the two workloads want
+ * very different pool sizes and timeouts.
+ * <p>
+ * Values that are left untouched fall back to the defaults of this class, which mirror the driver defaults.
+ */
+@Data
+public class DriverProfile {
+    /**
+     * Number of connections that are opened to every local host when the pool is created.
+     */
+    private int coreConnectionsPerHost = 1;
+
+    /**
+     * Upper bound of connections per local host the pool is allowed to grow to.
+     */
+    private int maxConnectionsPerHost = 1;
+
+    /**
+     * Maximum number of simultaneous requests on one connection.
+     */
+    private int maxRequestsPerConnection = 1024;
+
+    /**
+     * Frame compression, one of <code>NONE</code>, <code>LZ4</code> or <code>SNAPPY</code>.
+     */
+    private String compression = "NONE";
+
+    /**
+     * Use the native epoll transport when it is available. The transport is chosen by the driver once per JVM,
+     * so disabling it in any profile forces NIO for every cluster built afterwards.
+     */
+    private boolean epoll = true;
+
+    /**
+     * Route requests to a replica of the statement's partition when the routing key is known.
+     */
+    private boolean tokenAware = true;
+
+    /**
+     * Prefer hosts of the local datacenter.
+     */
+    private boolean dcAware = true;
+
+    /**
+     * Name of the local datacenter. If empty the datacenter of the first contact point is used.
+     */
+    private String localDc;
+
+    /**
+     * Number of hosts per remote datacenter that may be used when no local host is available.
+     */
+    private int usedHostsPerRemoteDc = 0;
+
+    private int connectTimeoutMillis = 5000;
+
+    private int readTimeoutMillis = 12000;
+
+    /**
+     * Delay before a speculative execution of an idempotent statement is started. Zero disables speculative
+     * executions.
+     */
+    private long speculativeDelayMillis = 0;
+
+    private int speculativeMaxExecutions = 2;
+}
@@ -0,0 +1,18 @@
+package com.betalpha.driver;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Binds the <code>cassandra.driver</code> section of the application configuration. The <code>ddl</code> profile
+ * is used for the session that executes migration scripts and maintains the <code>schema_migration</code> table,
+ * the <code>bulk</code> profile for the session that loads data.
+ */
+@Component
+@ConfigurationProperties(prefix = "cassandra.driver")
+@Data
+public class DriverProperties {
+    private DriverProfile ddl = new DriverProfile();
+    private DriverProfile bulk = new DriverProfile();
+}
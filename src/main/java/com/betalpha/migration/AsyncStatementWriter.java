@@ -0,0 +1,252 @@
+package com.betalpha.migration;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.betalpha.migration.util.Ensure.notNull;
+import static java.lang.String.format;
+
+/**
+ * Sends write statements asynchronously while keeping the number of requests in flight bounded. Consecutive
+ * statements for the same partition are grouped into unlogged batches, so every batch is handled by a replica
+ * of that partition.
+ * <p>
+ * Every statement gets a client side timestamp that grows in the order the statements are handed to the writer,
+ * so a later write to the same row wins even if the requests complete out of order. Statements with their own
+ * <code>USING TIMESTAMP</code> keep it. A batch is cut before a row
+ * is written a second time because all statements of a batch share one timestamp.
+ * <p>
+ * A failed request is sent again after a backoff if its error is transient and the statement is safe to retry, see
+ * {@link StatementRetry}. Retries keep the timestamp of the first attempt. The writer stops accepting statements
+ * after the first failure that is not retried, {@link #flush()} reports it.
+ */
+public class AsyncStatementWriter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncStatementWriter.class);
+
+    private static final String WRITE_ERROR_MSG = "Error while executing '%s'";
+
+    private static final AtomicLong LAST_TIMESTAMP = new AtomicLong();
+
+    private final Session session;
+    private final int maxInFlight;
+    private final int batchSize;
+    private final Semaphore inFlight;
+    private final StatementTracer tracer;
+    private final StatementRetry retry;
+    private final AtomicReference<MigrationException> failure = new AtomicReference<>();
+    private final List<Statement> batch = new ArrayList<>();
+    private final Set<Object> batchRowKeys = new HashSet<>();
+    private Object batchPartitionKey;
+    private String batchDescription;
+    private long written;
+
+    /**
+     * Creates a new writer.
+     *
+     * @param session     the session the statements are executed with
+     * @param maxInFlight the maximum number of requests that are executed at the same time
+     * @param batchSize   the maximum number of statements in one batch, one disables batching
+     */
+    public AsyncStatementWriter(Session session, int maxInFlight, int batchSize) {
+        this(session, maxInFlight, batchSize, StatementTracer.DISABLED, StatementRetry.NONE);
+    }
+
+    /**
+     * Creates a new writer that retries failed statements and hands the executed statements to a tracer.
+     *
+     * @param session     the session the statements are executed with
+     * @param maxInFlight the maximum number of requests that are executed at the same time
+     * @param batchSize   the maximum number of statements in one batch, one disables batching
+     * @param tracer      captures sampled and slow statements
+     * @param retry       decides which failed statements are sent again
+     */
+    public AsyncStatementWriter(Session session, int maxInFlight, int batchSize, StatementTracer tracer,
+                                StatementRetry retry) {
+        this.session = notNull(session, "session");
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.batchSize = Math.max(1, batchSize);
+        this.inFlight = new Semaphore(this.maxInFlight);
+        this.tracer = notNull(tracer, "tracer");
+        this.retry = notNull(retry, "retry");
+    }
+
+    /**
+     * Writes a statement that is not grouped with others.
+     *
+     * @param statement   the statement to execute
+     * @param description used in the error message if the statement fails, usually the cql text
+     */
+    public void write(Statement statement, String description) {
+        write(statement, null, null, description);
+    }
+
+    /**
+     * Writes a statement. Consecutive statements with the same partition key are sent as one unlogged batch.
+     *
+     * @param statement    the statement to execute
+     * @param partitionKey identifies the partition written by the statement, null if unknown
+     * @param rowKey       identifies the row written by the statement, null if unknown
+     * @param description  used in the error message if the statement fails, usually the cql text
+     */
+    public void write(Statement statement, Object partitionKey, Object rowKey, String description) {
+        throwIfFailed();
+        if (partitionKey == null || rowKey == null || batchSize == 1) {
+            flushBatch();
+            submit(statement, 1, description);
+            return;
+        }
+        if (!batch.isEmpty() && (!Objects.equals(batchPartitionKey, partitionKey)
+                || batchRowKeys.contains(rowKey) || batch.size() >= batchSize)) {
+            flushBatch();
+        }
+        if (batch.isEmpty()) {
+            batchPartitionKey = partitionKey;
+            batchDescription = description;
+        }
+        batch.add(statement);
+        batchRowKeys.add(rowKey);
+    }
+
+    /**
+     * Sends the pending batch and waits until all requests completed.
+     *
+     * @return the number of statements written since the writer was created
+     * @throws MigrationException if any of the statements failed
+     */
+    public long flush() {
+        flushBatch();
+        try {
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new MigrationException("Interrupted while waiting for pending writes", exception);
+        }
+        throwIfFailed();
+        return written;
+    }
+
+    /**
+     * Returns the number of requests that are executed at the moment, including the ones waiting for a retry.
+     *
+     * @return the requests in flight
+     */
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    private void flushBatch() {
+        if (batch.isEmpty()) {
+            return;
+        }
+        Statement statement;
+        if (batch.size() == 1) {
+            statement = batch.get(0);
+        } else {
+            BatchStatement batchStatement = new BatchStatement(BatchStatement.Type.UNLOGGED);
+            batchStatement.addAll(batch);
+            batchStatement.setConsistencyLevel(batch.get(0).getConsistencyLevel());
+            statement = batchStatement;
+        }
+        int count = batch.size();
+        String description = count == 1 ? batchDescription
+                : format("batch of %d statements starting with %s", count, batchDescription);
+        batch.clear();
+        batchRowKeys.clear();
+        batchPartitionKey = null;
+        submit(statement, count, description);
+    }
+
+    private void submit(Statement statement, int count, String description) {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new MigrationException("Interrupted while waiting for pending writes", exception);
+        }
+        written += count;
+        statement.setDefaultTimestamp(nextTimestamp());
+        tracer.sample(statement);
+        try {
+            execute(statement, description, 1);
+        } catch (RuntimeException exception) {
+            inFlight.release();
+            throw new MigrationException(format(WRITE_ERROR_MSG, description), exception, null, description);
+        }
+    }
+
+    /**
+     * Sends one attempt of a statement. The permit taken in {@link #submit} is held until the statement succeeded
+     * or failed for good.
+     */
+    private void execute(Statement statement, String description, int attempt) {
+        long start = System.nanoTime();
+        ResultSetFuture future = session.executeAsync(statement);
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet result) {
+                inFlight.release();
+                tracer.record(statement, description, start, result, attempt - 1);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                if (failure.get() == null && retry.shouldRetry(statement, throwable, attempt)) {
+                    LOGGER.warn("Attempt {} of asynchronous write failed with {}, retrying: {}", attempt,
+                            throwable.toString(), description);
+                    retry.schedule(attempt, () -> {
+                        try {
+                            execute(statement, description, attempt + 1);
+                        } catch (RuntimeException exception) {
+                            fail(exception, description);
+                        }
+                    });
+                    return;
+                }
+                fail(throwable, description);
+            }
+        });
+    }
+
+    private void fail(Throwable throwable, String description) {
+        if (failure.compareAndSet(null,
+                new MigrationException(format(WRITE_ERROR_MSG, description), throwable, null, description))) {
+            LOGGER.error("Asynchronous write failed: {}", description, throwable);
+        }
+        inFlight.release();
+    }
+
+    private void throwIfFailed() {
+        MigrationException exception = failure.get();
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    /**
+     * Returns a timestamp in microseconds that is strictly greater than any timestamp returned before in this JVM.
+     * Writes that are not sent through a writer use it as well to stay ordered behind the asynchronous ones.
+     *
+     * @return the next write timestamp
+     */
+    public static long nextTimestamp() {
+        long now = System.currentTimeMillis() * 1000;
+        return LAST_TIMESTAMP.updateAndGet(last -> Math.max(now, last + 1));
+    }
+}
@@ -0,0 +1,46 @@
+package com.betalpha.migration;
+
+import com.datastax.driver.core.Row;
+
+import java.util.Map;
+
+/**
+ * A migration written in Java that copies the rows of a source table into a target table, changing their shape on
+ * the way. It is used to rename or reshape a table while the old one stays in place, instead of dropping and
+ * reloading it.
+ * <p>
+ * Backfills are versioned like the migration scripts. They live in the package
+ * <code>com.betalpha.migration.backfill</code> and are named <code>V&lt;version&gt;_&lt;name&gt;</code>, e.g.
+ * <code>V12_StockYieldByDate</code>, and need a public constructor without arguments. The target table has to be
+ * created by a script with a lower version.
+ * <p>
+ * The source table is read in token ranges in parallel. Completed ranges are checkpointed, so a backfill that was
+ * interrupted continues with the ranges not yet copied. Ranges may be copied more than once, so the transformation
+ * must always produce the same target row for the same source row. Rows written to the source table while the
+ * backfill runs are only copied if their range was not read yet, the application has to write both tables until
+ * the backfill is done. Copied rows keep the write time of their source row, so a newer write of the application
+ * to the target table is never overwritten by the copy of an older value.
+ */
+public interface BackfillMigration {
+    /**
+     * Returns the table the rows are read from.
+     *
+     * @return the name of the source table in the migrated keyspace
+     */
+    String getSourceTable();
+
+    /**
+     * Returns the table the transformed rows are written to.
+     *
+     * @return the name of the target table in the migrated keyspace
+     */
+    String getTargetTable();
+
+    /**
+     * Transforms a row of the source table into a row of the target table.
+     *
+     * @param row a row of the source table with all its columns
+     * @return the values of the target row by column name, null values are not written. Null to skip the row.
+     */
+    Map<String, Object> transform(Row row);
+}
@@ -0,0 +1,232 @@
+package com.betalpha.migration;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.TokenRange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static java.lang.String.format;
+
+/**
+ * Executes a {@link BackfillMigration}: reads the source table in token ranges, transforms every row and writes it
+ * through an {@link AsyncStatementWriter}. A range is checkpointed in the <code>checkpointTable</code> once all of
+ * its writes are acknowledged. The ring is split into a fixed number of ranges, so the checkpoints stay valid when
+ * the parallelism or the tokens of the nodes change between two runs.
+ * <p>
+ * A target row is written with the latest write time of the columns of its source row instead of the current time.
+ * While the application writes both tables, a value it writes to the target after the source row was changed is
+ * newer than the copy, so it is kept even if the copy of an old value arrives later. Source rows without any such
+ * column, e.g. rows that only have primary key columns, are written with the oldest possible timestamp, so every
+ * write of the application wins.
+ */
+class BackfillRunner {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackfillRunner.class);
+
+    private static final String CHECKPOINT_QUERY = "select range_start, range_end from %s where version = ?";
+    private static final String INSERT_CHECKPOINT = "insert into %s (version, range_start, range_end, rows,"
+            + " completed_at) values (?, ?, ?, ?, ?)";
+    private static final String TARGET_INSERT = "INSERT INTO %s.%s (%s) VALUES (%s) USING TIMESTAMP ?";
+
+    /**
+     * The timestamp of target rows whose source row has no column with a write time.
+     */
+    private static final long OLDEST_TIMESTAMP = 0;
+
+    /**
+     * Number of ranges the ring is checkpointed in. It must not change between runs, otherwise the checkpoints of an
+     * interrupted backfill no longer match and the whole table is copied again.
+     */
+    private static final int CHECKPOINT_RANGES = 1024;
+
+    private final Session session;
+    private final Session bulkSession;
+    private final String keyspaceName;
+    private final String checkpointTable;
+    private final int parallelism;
+    private final int pageSize;
+    private final int maxInFlight;
+    private final int batchSize;
+    private final StatementTracer tracer;
+    private final StatementRetry retry;
+    private final Runnable leaseCheck;
+    private final ConcurrentMap<Set<String>, PreparedStatement> targetInserts = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new runner.
+     *
+     * @param session         the session used for the checkpoints
+     * @param bulkSession     the session the tables are read and written with
+     * @param keyspaceName    the keyspace containing the tables
+     * @param checkpointTable the table the completed ranges are recorded in
+     * @param parallelism     the number of token ranges copied at the same time
+     * @param pageSize        the number of source rows fetched with one request
+     * @param maxInFlight     the maximum number of writes executed at the same time over all ranges
+     * @param batchSize       the maximum number of rows of one partition sent as one batch
+     * @param tracer          captures sampled and slow writes
+     * @param retry           decides which failed reads and writes are sent again
+     * @param leaseCheck      called before every range, throws if the migration has to stop
+     */
+    BackfillRunner(Session session, Session bulkSession, String keyspaceName, String checkpointTable,
+                   int parallelism, int pageSize, int maxInFlight, int batchSize, StatementTracer tracer,
+                   StatementRetry retry, Runnable leaseCheck) {
+        this.session = session;
+        this.bulkSession = bulkSession;
+        this.keyspaceName = keyspaceName;
+        this.checkpointTable = checkpointTable;
+        this.parallelism = Math.max(1, parallelism);
+        this.pageSize = pageSize;
+        this.maxInFlight = maxInFlight;
+        this.batchSize = batchSize;
+        this.tracer = tracer;
+        this.retry = retry;
+        this.leaseCheck = leaseCheck;
+    }
+
+    /**
+     * Copies all ranges of the source table that are not checkpointed yet.
+     *
+     * @param version  the version of the backfill, the checkpoints are kept per version
+     * @param backfill the backfill to execute
+     * @return the number of rows written
+     * @throws MigrationException if a table is unknown or reading, transforming or writing fails
+     */
+    long run(int version, BackfillMigration backfill) {
+        TableMetadata source = tableMetadata(backfill.getSourceTable());
+        TableMetadata target = tableMetadata(backfill.getTargetTable());
+        TokenRangeScanner scanner = new TokenRangeScanner(bulkSession, ConsistencyLevel.QUORUM, parallelism,
+                pageSize, retry);
+        Set<String> completed = completedRanges(version);
+        List<TokenRange> ranges = scanner.splitRing(CHECKPOINT_RANGES).stream()
+                .filter(range -> !completed.contains(rangeKey(range)))
+                .collect(Collectors.toList());
+        LOGGER.info("Backfilling {} from {} in {} token ranges, {} ranges were completed before.",
+                target.getName(), source.getName(), ranges.size(), completed.size());
+
+        PreparedStatement checkpoint = session.prepare(format(INSERT_CHECKPOINT, checkpointTable));
+        int rangeInFlight = Math.max(1, maxInFlight / parallelism);
+        List<ColumnMetadata> columns = source.getColumns();
+        List<ColumnMetadata> writeTimeColumns = columns.stream()
+                .filter(column -> !source.getPrimaryKey().contains(column))
+                .filter(column -> !column.getType().isCollection() || column.getType().isFrozen())
+                .collect(Collectors.toList());
+        AtomicLong written = new AtomicLong();
+        scanner.scan(source, columns, writeTimeColumns, ranges, (range, rows) -> {
+            leaseCheck.run();
+            AsyncStatementWriter writer = new AsyncStatementWriter(bulkSession, rangeInFlight, batchSize, tracer,
+                    retry);
+            while (rows.hasNext()) {
+                Row row = rows.next();
+                Map<String, Object> values = backfill.transform(row);
+                if (values != null) {
+                    write(writer, target, values, writeTime(row, columns.size(), writeTimeColumns.size()), range);
+                }
+            }
+            long rangeRows = writer.flush();
+            written.addAndGet(rangeRows);
+            retry.execute(session, checkpoint.bind(version, range.getStart().toString(), range.getEnd().toString(),
+                    rangeRows, new Date()).setConsistencyLevel(ConsistencyLevel.QUORUM),
+                    format("checkpoint of range %s", range));
+        });
+        return written.get();
+    }
+
+    /**
+     * Returns the latest write time of the source row, read behind its columns.
+     */
+    private static long writeTime(Row row, int offset, int count) {
+        long writeTime = OLDEST_TIMESTAMP;
+        for (int i = offset; i < offset + count; i++) {
+            if (!row.isNull(i)) {
+                writeTime = Math.max(writeTime, row.getLong(i));
+            }
+        }
+        return writeTime;
+    }
+
+    private void write(AsyncStatementWriter writer, TableMetadata target, Map<String, Object> values,
+                       long writeTime, TokenRange range) {
+        Set<String> columns = new TreeSet<>();
+        values.forEach((column, value) -> {
+            if (value != null) {
+                columns.add(column);
+            }
+        });
+        PreparedStatement prepared = targetInserts.computeIfAbsent(columns, key -> bulkSession.prepare(
+                format(TARGET_INSERT, Metadata.quote(keyspaceName), Metadata.quote(target.getName()),
+                        key.stream().map(Metadata::quote).collect(Collectors.joining(", ")),
+                        key.stream().map(column -> "?").collect(Collectors.joining(", "))))
+                .setConsistencyLevel(ConsistencyLevel.QUORUM));
+        CodecRegistry codecRegistry = bulkSession.getCluster().getConfiguration().getCodecRegistry();
+        BoundStatement statement = prepared.bind();
+        int index = 0;
+        for (String column : columns) {
+            ColumnMetadata columnMetadata = target.getColumn(Metadata.quote(column));
+            if (columnMetadata == null) {
+                throw new MigrationException(format("Unknown column %s in table %s", column, target.getName()),
+                        null);
+            }
+            Object value = values.get(column);
+            statement.set(index++, value, codecRegistry.codecFor(columnMetadata.getType(), value));
+        }
+        statement.setLong(index, writeTime);
+        // the same source row always results in the same target row, so the write can be repeated
+        statement.setIdempotent(true);
+        writer.write(statement, keyOf(values, target.getPartitionKey()), keyOf(values, target.getPrimaryKey()),
+                format("backfill of %s from range %s", target.getName(), range));
+    }
+
+    private static List<Object> keyOf(Map<String, Object> values, List<ColumnMetadata> keyColumns) {
+        List<Object> key = new ArrayList<>(keyColumns.size());
+        for (ColumnMetadata column : keyColumns) {
+            Object value = values.get(column.getName());
+            if (value == null) {
+                return null;
+            }
+            key.add(value);
+        }
+        return key;
+    }
+
+    private Set<String> completedRanges(int version) {
+        Set<String> completed = new HashSet<>();
+        for (Row row : retry.execute(session, session.prepare(format(CHECKPOINT_QUERY, checkpointTable))
+                .bind(version).setConsistencyLevel(ConsistencyLevel.QUORUM), "checkpoint query")) {
+            completed.add(row.getString(0) + ":" + row.getString(1));
+        }
+        return completed;
+    }
+
+    private static String rangeKey(TokenRange range) {
+        return range.getStart() + ":" + range.getEnd();
+    }
+
+    private TableMetadata tableMetadata(String table) {
+        KeyspaceMetadata keyspace = bulkSession.getCluster().getMetadata().getKeyspace(Metadata.quote(keyspaceName));
+        TableMetadata tableMetadata = keyspace == null ? null : keyspace.getTable(table);
+        if (tableMetadata == null) {
+            throw new MigrationException(format("Unknown table %s in keyspace %s", table, keyspaceName), null);
+        }
+        return tableMetadata;
+    }
+}
@@ -0,0 +1,27 @@
+package com.betalpha.migration;
+
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Loads whole data files into the cluster without sending every row through cql. The implementation writing
+ * SSTables depends on cassandra-all and is only part of builds with the Maven profile <code>sstable</code>.
+ */
+public interface BulkDataLoader {
+    /**
+     * Sets the progress the loaded rows and files are reported to.
+     *
+     * @param progress the progress of the data step
+     */
+    void setProgress(MigrationProgress progress);
+
+    /**
+     * Loads the data files.
+     *
+     * @param files the data files by file name, see {@link CsvDataLoader#tableName(String)}, with a way to open them
+     * @return the number of rows loaded
+     * @throws MigrationException if loading a file fails
+     */
+    long load(Map<String, Callable<InputStream>> files);
+}
@@ -0,0 +1,303 @@
+package com.betalpha.migration;
+
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.TypeCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
+
+import static com.betalpha.migration.util.Ensure.notNull;
+import static com.betalpha.migration.util.Ensure.notNullOrEmpty;
+import static java.lang.String.format;
+
+/**
+ * Exports a table into data files that can be put into a data folder of a migration. The files have the format
+ * {@link CsvDataLoader} and <code>cqlsh COPY ... FROM</code> read: the columns in the order of the table metadata,
+ * text as it is, timestamps as <code>yyyy-MM-dd HH:mm:ss.SSSZ</code> and everything else as cql literal.
+ * <p>
+ * The table is read through a {@link TokenRangeScanner}. The rows of a range are written as blocks that are cut
+ * between two partitions, so the rows of a partition stay together even though several ranges are written at the
+ * same time, but the order of the partitions differs from the order of the token ring. Only a partition with more
+ * than {@value #MAX_BLOCK_SIZE} rows is written in several blocks, which keeps the memory of a range bounded.
+ * <p>
+ * The files are written under a name starting with an underscore, which the data loaders skip, and renamed once the
+ * whole table was exported. A failed export deletes them.
+ */
+public class CsvDataExporter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CsvDataExporter.class);
+
+    private static final String DATA_ENCODING = "UTF-8";
+    private static final char DELIMITER = ',';
+    private static final char QUOTE = '"';
+    private static final String TIMESTAMP_FORMAT = "yyyy-MM-dd HH:mm:ss.SSSZ";
+    private static final String COMPRESSED_SUFFIX = ".gz";
+
+    /**
+     * Number of rows of a range that are formatted before they are appended to the output. A block is extended until
+     * the partition of its last row ends.
+     */
+    private static final int BLOCK_SIZE = 500;
+
+    /**
+     * Number of rows after which a block is cut even within a partition.
+     */
+    private static final int MAX_BLOCK_SIZE = 20 * BLOCK_SIZE;
+
+    private static final String PARTIAL_FILE_PREFIX = "_";
+
+    private final Session session;
+    private final String keyspaceName;
+    private final TokenRangeScanner scanner;
+
+    /**
+     * Creates a new exporter.
+     *
+     * @param session          the session the table is read with
+     * @param keyspaceName     the keyspace containing the tables
+     * @param consistencyLevel the consistency level of the reads
+     * @param parallelism      the maximum number of token ranges read at the same time
+     * @param pageSize         the number of rows fetched with one request
+     * @param retry            decides whether a failed read is sent again
+     */
+    public CsvDataExporter(Session session, String keyspaceName, ConsistencyLevel consistencyLevel, int parallelism,
+                           int pageSize, StatementRetry retry) {
+        this.session = notNull(session, "session");
+        this.keyspaceName = notNullOrEmpty(keyspaceName, "keyspaceName");
+        this.scanner = new TokenRangeScanner(session, consistencyLevel, parallelism, pageSize, retry);
+    }
+
+    /**
+     * Exports all rows of a table into the folder. The files are named like the table, see
+     * {@link CsvDataLoader#tableName(String)}.
+     *
+     * @param table     the name of the table, as stored in the schema
+     * @param folder    the folder the data files are written to
+     * @param compress  whether the files are gzip compressed
+     * @param chunkRows the number of rows after which a new file is started, zero or less for a single file
+     * @return the files that were written
+     * @throws IOException        if writing a file fails
+     * @throws MigrationException if the table is unknown or reading it fails
+     */
+    public List<File> export(String table, File folder, boolean compress, long chunkRows) throws IOException {
+        KeyspaceMetadata keyspace = session.getCluster().getMetadata().getKeyspace(Metadata.quote(keyspaceName));
+        TableMetadata tableMetadata = keyspace == null ? null : keyspace.getTable(table);
+        if (tableMetadata == null) {
+            throw new MigrationException(format("Unknown table %s in keyspace %s", table, keyspaceName), null);
+        }
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Unable to create folder " + folder);
+        }
+        List<ColumnMetadata> columns = tableMetadata.getColumns();
+        int partitionKeySize = tableMetadata.getPartitionKey().size();
+        CodecRegistry codecRegistry = session.getCluster().getConfiguration().getCodecRegistry();
+        List<TypeCodec<Object>> codecs = new ArrayList<>(columns.size());
+        for (ColumnMetadata column : columns) {
+            codecs.add(codecRegistry.codecFor(column.getType()));
+        }
+
+        long start = System.currentTimeMillis();
+        try (ChunkedOutput output = new ChunkedOutput(folder, tableMetadata.getName(), compress, chunkRows)) {
+            scanner.scan(tableMetadata, columns, scanner.splitRing(), (range, rows) -> {
+                SimpleDateFormat timestampFormat = new SimpleDateFormat(TIMESTAMP_FORMAT);
+                timestampFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+                StringBuilder block = new StringBuilder();
+                int blockRows = 0;
+                List<Object> lastPartition = null;
+                while (rows.hasNext()) {
+                    Row row = rows.next();
+                    List<Object> partition = partitionKey(row, partitionKeySize, codecs);
+                    // the columns start with the partition key, so only wide partitions are split
+                    if (blockRows >= MAX_BLOCK_SIZE
+                            || (blockRows >= BLOCK_SIZE && !partition.equals(lastPartition))) {
+                        output.append(block, blockRows);
+                        block.setLength(0);
+                        blockRows = 0;
+                    }
+                    appendRow(block, row, columns, codecs, timestampFormat);
+                    blockRows++;
+                    lastPartition = partition;
+                }
+                if (blockRows > 0) {
+                    output.append(block, blockRows);
+                }
+            });
+            output.complete();
+            LOGGER.info("Exported {} rows of table {} into {} files within {} ms.", output.rows, table,
+                    output.files.size(), System.currentTimeMillis() - start);
+            return output.files;
+        }
+    }
+
+    private static List<Object> partitionKey(Row row, int partitionKeySize, List<TypeCodec<Object>> codecs) {
+        List<Object> key = new ArrayList<>(partitionKeySize);
+        for (int i = 0; i < partitionKeySize; i++) {
+            key.add(row.get(i, codecs.get(i)));
+        }
+        return key;
+    }
+
+    private static void appendRow(StringBuilder block, Row row, List<ColumnMetadata> columns,
+                                  List<TypeCodec<Object>> codecs, SimpleDateFormat timestampFormat) {
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                block.append(DELIMITER);
+            }
+            appendField(block, formatValue(row.get(i, codecs.get(i)), columns.get(i).getType(), codecs.get(i),
+                    timestampFormat));
+        }
+        block.append('\n');
+    }
+
+    /**
+     * Formats a single value the way {@link CsvDataLoader} parses it back.
+     */
+    private static String formatValue(Object value, DataType type, TypeCodec<Object> codec,
+                                      SimpleDateFormat timestampFormat) {
+        if (value == null) {
+            return "";
+        }
+        switch (type.getName()) {
+            case TEXT:
+            case VARCHAR:
+            case ASCII:
+                return (String) value;
+            case TIMESTAMP:
+                return timestampFormat.format((Date) value);
+            case BOOLEAN:
+                return (Boolean) value ? "True" : "False";
+            default:
+                String literal = codec.format(value);
+                if (!type.isCollection() && literal.length() > 1 && literal.startsWith("'")
+                        && literal.endsWith("'")) {
+                    return literal.substring(1, literal.length() - 1).replace("''", "'");
+                }
+                return literal;
+        }
+    }
+
+    private static void appendField(StringBuilder block, String field) {
+        boolean quote = false;
+        for (int i = 0; i < field.length() && !quote; i++) {
+            char current = field.charAt(i);
+            quote = current == DELIMITER || current == QUOTE || current == '\n' || current == '\r';
+        }
+        if (!quote) {
+            block.append(field);
+            return;
+        }
+        block.append(QUOTE);
+        for (int i = 0; i < field.length(); i++) {
+            char current = field.charAt(i);
+            if (current == QUOTE) {
+                block.append(QUOTE);
+            }
+            block.append(current);
+        }
+        block.append(QUOTE);
+    }
+
+    /**
+     * Appends blocks of rows to the data files of one table and starts a new file when a file holds the configured
+     * number of rows. Blocks are never split, so a file may hold a few more rows. The files get their final names in
+     * {@link #complete()}, closing the output before deletes them.
+     */
+    private static final class ChunkedOutput implements AutoCloseable {
+        private final File folder;
+        private final String table;
+        private final boolean compress;
+        private final long chunkRows;
+        private final List<File> files = new ArrayList<>();
+        private final List<File> partialFiles = new ArrayList<>();
+        private Writer writer;
+        private long rows;
+        private long chunkRowCount;
+
+        private ChunkedOutput(File folder, String table, boolean compress, long chunkRows) {
+            this.folder = folder;
+            this.table = table;
+            this.compress = compress;
+            this.chunkRows = chunkRows;
+        }
+
+        synchronized void append(CharSequence block, int blockRows) throws IOException {
+            if (writer == null || (chunkRows > 0 && chunkRowCount >= chunkRows)) {
+                nextFile();
+            }
+            writer.append(block);
+            rows += blockRows;
+            chunkRowCount += blockRows;
+        }
+
+        private void nextFile() throws IOException {
+            closeWriter();
+            String name = chunkRows > 0 ? table + "." + (files.size() + 1) : table;
+            File file = new File(folder, compress ? name + COMPRESSED_SUFFIX : name);
+            File partialFile = new File(folder, PARTIAL_FILE_PREFIX + file.getName());
+            partialFiles.add(partialFile);
+            OutputStream stream = new FileOutputStream(partialFile);
+            if (compress) {
+                stream = new GZIPOutputStream(stream, 64 * 1024);
+            }
+            writer = new BufferedWriter(new OutputStreamWriter(stream, DATA_ENCODING), 64 * 1024);
+            files.add(file);
+            chunkRowCount = 0;
+        }
+
+        private void closeWriter() throws IOException {
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+        }
+
+        /**
+         * Closes the last file and gives all files their final names, replacing the files of an earlier export.
+         */
+        synchronized void complete() throws IOException {
+            if (files.isEmpty()) {
+                nextFile();
+            }
+            closeWriter();
+            for (int i = 0; i < files.size(); i++) {
+                Files.move(partialFiles.get(i).toPath(), files.get(i).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            partialFiles.clear();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                closeWriter();
+            } finally {
+                for (File partialFile : partialFiles) {
+                    if (partialFile.exists() && !partialFile.delete()) {
+                        LOGGER.warn("Unable to delete partial export file {}", partialFile);
+                    }
+                }
+            }
+        }
+    }
+}
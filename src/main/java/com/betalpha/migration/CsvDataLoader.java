@@ -0,0 +1,364 @@
+package com.betalpha.migration;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.TypeCodec;
+import com.datastax.driver.core.exceptions.InvalidTypeException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+import static com.betalpha.migration.util.Ensure.notNull;
+import static com.betalpha.migration.util.Ensure.notNullOrEmpty;
+import static java.lang.String.format;
+
+/**
+ * Loads a data file into a table through the driver. The file has the format <code>cqlsh COPY ... TO</code>
+ * writes by default: one row per line, the values of all columns in the order of the table metadata separated by
+ * commas, values containing commas, quotes or line breaks enclosed in double quotes and empty values for null.
+ * <p>
+ * A table may be split into several files and files may be compressed, see {@link #tableName(String)}.
+ * <p>
+ * The rows are written through an {@link AsyncStatementWriter}, so consecutive rows of one partition end up in one
+ * batch.
+ */
+public class CsvDataLoader {
+    private static final String DATA_ENCODING = "UTF-8";
+    private static final char DELIMITER = ',';
+    private static final char QUOTE = '"';
+    private static final String PARSE_ERROR_MSG = "Error in line %d of data file for table %s: %s";
+    private static final String COMPRESSED_SUFFIX = ".gz";
+
+    private final Session session;
+    private final String keyspaceName;
+    private final ConsistencyLevel consistencyLevel;
+    private final int maxInFlight;
+    private final int batchSize;
+    private final StatementTracer tracer;
+    private final StatementRetry retry;
+    private MigrationProgress progress = MigrationProgress.DISABLED;
+
+    /**
+     * Creates a new loader.
+     *
+     * @param session          the session the rows are written with
+     * @param keyspaceName     the keyspace containing the tables
+     * @param consistencyLevel the consistency level of the writes
+     * @param maxInFlight      the maximum number of requests executed at the same time
+     * @param batchSize        the maximum number of rows of one partition sent as one batch
+     */
+    public CsvDataLoader(Session session, String keyspaceName, ConsistencyLevel consistencyLevel, int maxInFlight,
+                         int batchSize) {
+        this(session, keyspaceName, consistencyLevel, maxInFlight, batchSize, StatementTracer.DISABLED,
+                StatementRetry.NONE);
+    }
+
+    /**
+     * Creates a new loader that retries failed writes and hands the executed writes to a tracer.
+     *
+     * @param session          the session the rows are written with
+     * @param keyspaceName     the keyspace containing the tables
+     * @param consistencyLevel the consistency level of the writes
+     * @param maxInFlight      the maximum number of requests executed at the same time
+     * @param batchSize        the maximum number of rows of one partition sent as one batch
+     * @param tracer           captures sampled and slow writes
+     * @param retry            decides which failed writes are sent again
+     */
+    public CsvDataLoader(Session session, String keyspaceName, ConsistencyLevel consistencyLevel, int maxInFlight,
+                         int batchSize, StatementTracer tracer, StatementRetry retry) {
+        this.session = notNull(session, "session");
+        this.keyspaceName = notNullOrEmpty(keyspaceName, "keyspaceName");
+        this.consistencyLevel = notNull(consistencyLevel, "consistencyLevel");
+        this.maxInFlight = maxInFlight;
+        this.batchSize = batchSize;
+        this.tracer = notNull(tracer, "tracer");
+        this.retry = notNull(retry, "retry");
+    }
+
+    /**
+     * Sets the progress the loaded rows and the requests in flight are reported to.
+     *
+     * @param progress the progress of the data step
+     */
+    public void setProgress(MigrationProgress progress) {
+        this.progress = notNull(progress, "progress");
+    }
+
+    /**
+     * Loads all rows of the stream into the table. The stream is not closed.
+     *
+     * @param table the name of the table, as stored in the schema
+     * @param input the data file
+     * @return the number of rows written
+     * @throws IOException        if reading the stream fails
+     * @throws MigrationException if the table is unknown, a line cannot be parsed or a write fails
+     */
+    public long load(String table, InputStream input) throws IOException {
+        TableMetadata tableMetadata = tableMetadata(table);
+        List<ColumnMetadata> columns = tableMetadata.getColumns();
+        PreparedStatement prepared = session.prepare(format("INSERT INTO %s.%s (%s) VALUES (%s)",
+                Metadata.quote(keyspaceName), Metadata.quote(tableMetadata.getName()),
+                columns.stream().map(column -> Metadata.quote(column.getName())).collect(Collectors.joining(", ")),
+                columns.stream().map(column -> "?").collect(Collectors.joining(", "))))
+                .setConsistencyLevel(consistencyLevel);
+        int partitionKeySize = tableMetadata.getPartitionKey().size();
+        int primaryKeySize = tableMetadata.getPrimaryKey().size();
+        CodecRegistry codecRegistry = session.getCluster().getConfiguration().getCodecRegistry();
+        List<TypeCodec<Object>> codecs = new ArrayList<>(columns.size());
+        for (ColumnMetadata column : columns) {
+            codecs.add(codecRegistry.codecFor(column.getType()));
+        }
+
+        AsyncStatementWriter writer = new AsyncStatementWriter(session, maxInFlight, batchSize, tracer, retry);
+        progress.trackInFlight(writer::getInFlight);
+        readRows(table, input, columns, codecs, (values, lineNumber) -> {
+            BoundStatement boundStatement = prepared.bind();
+            for (int i = 0; i < values.length; i++) {
+                boundStatement.set(i, values[i], codecs.get(i));
+            }
+            writer.write(boundStatement, keyOf(values, partitionKeySize), keyOf(values, primaryKeySize),
+                    format("line %d of data file for table %s", lineNumber, table));
+            progress.addRows(1);
+        });
+        return writer.flush();
+    }
+
+    /**
+     * Receives the rows of a data file.
+     */
+    interface RowHandler {
+        /**
+         * Handles one row.
+         *
+         * @param values     the values of all columns in the order of the table metadata
+         * @param lineNumber the line the row starts at
+         * @throws IOException if handling the row fails
+         */
+        void handle(Object[] values, long lineNumber) throws IOException;
+    }
+
+    /**
+     * Receives the records of a data file as they are stored.
+     */
+    interface RecordHandler {
+        /**
+         * Handles one record.
+         *
+         * @param record     the text of the record without the final line break, quoted values may span lines
+         * @param fields     the unparsed values of the record
+         * @param lineNumber the line the record starts at
+         * @throws IOException if handling the record fails
+         */
+        void handle(String record, List<String> fields, long lineNumber) throws IOException;
+    }
+
+    /**
+     * Reads and parses the rows of a data file. The stream is not closed.
+     *
+     * @param table   the name of the table, used in error messages
+     * @param input   the data file
+     * @param columns the columns of the table in the order of the table metadata
+     * @param codecs  the codecs of the columns
+     * @param handler receives the rows
+     * @return the number of rows read
+     * @throws IOException        if reading the stream or handling a row fails
+     * @throws MigrationException if a line cannot be parsed
+     */
+    static long readRows(String table, InputStream input, List<ColumnMetadata> columns,
+                         List<TypeCodec<Object>> codecs, RowHandler handler) throws IOException {
+        return readRecords(table, input, (record, fields, lineNumber) -> {
+            if (fields.size() != columns.size()) {
+                throw new MigrationException(format(PARSE_ERROR_MSG, lineNumber, table,
+                        format("expected %d values but found %d", columns.size(), fields.size())), null);
+            }
+            Object[] values = new Object[fields.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = parse(codecs.get(i), columns.get(i).getType(), fields.get(i), table, lineNumber);
+            }
+            handler.handle(values, lineNumber);
+        });
+    }
+
+    /**
+     * Reads the records of a data file without parsing the values. The stream is not closed.
+     *
+     * @param table   the name of the table, used in error messages
+     * @param input   the data file
+     * @param handler receives the records
+     * @return the number of records read
+     * @throws IOException        if reading the stream or handling a record fails
+     * @throws MigrationException if a quoted value is not terminated
+     */
+    static long readRecords(String table, InputStream input, RecordHandler handler) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, DATA_ENCODING));
+        String line;
+        long lineNumber = 0;
+        long records = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.isEmpty()) {
+                continue;
+            }
+            long recordLineNumber = lineNumber;
+            StringBuilder record = new StringBuilder(line);
+            while (hasOpenQuote(record)) {
+                String continuation = reader.readLine();
+                if (continuation == null) {
+                    throw new MigrationException(format(PARSE_ERROR_MSG, recordLineNumber, table,
+                            "unterminated quoted value"), null);
+                }
+                lineNumber++;
+                record.append('\n').append(continuation);
+            }
+            String text = record.toString();
+            handler.handle(text, splitLine(text), recordLineNumber);
+            records++;
+        }
+        return records;
+    }
+
+    private TableMetadata tableMetadata(String table) {
+        KeyspaceMetadata keyspace = session.getCluster().getMetadata().getKeyspace(Metadata.quote(keyspaceName));
+        TableMetadata tableMetadata = keyspace == null ? null : keyspace.getTable(table);
+        if (tableMetadata == null) {
+            throw new MigrationException(format("Unknown table %s in keyspace %s", table, keyspaceName), null);
+        }
+        return tableMetadata;
+    }
+
+    /**
+     * Parses a single value of a record.
+     *
+     * @param codec      the codec of the column
+     * @param type       the type of the column
+     * @param field      the unparsed value
+     * @param table      the name of the table, used in error messages
+     * @param lineNumber the line the record starts at, used in error messages
+     * @return the value, null for an empty field
+     * @throws MigrationException if the value cannot be parsed
+     */
+    static Object parse(TypeCodec<Object> codec, DataType type, String field, String table, long lineNumber) {
+        try {
+            return parse(codec, type, field);
+        } catch (InvalidTypeException exception) {
+            throw new MigrationException(format(PARSE_ERROR_MSG, lineNumber, table, exception.getMessage()),
+                    exception);
+        }
+    }
+
+    /**
+     * Parses a single value. Text is taken as it is, everything else is parsed as cql literal, quoted if needed.
+     */
+    private static Object parse(TypeCodec<Object> codec, DataType type, String field) {
+        if (field.isEmpty()) {
+            return null;
+        }
+        DataType.Name name = type.getName();
+        if (name == DataType.Name.TEXT || name == DataType.Name.VARCHAR || name == DataType.Name.ASCII) {
+            return field;
+        }
+        try {
+            return codec.parse(field);
+        } catch (InvalidTypeException exception) {
+            return codec.parse("'" + field.replace("'", "''") + "'");
+        }
+    }
+
+    /**
+     * Returns the table the rows of a data file belong to. A data file is named like its table, optionally followed
+     * by a chunk number and the suffix of compressed files: <code>tradingdate</code>, <code>tradingdate.2</code>,
+     * <code>tradingdate.2.gz</code>.
+     *
+     * @param fileName the name of the data file without folder
+     * @return the name of the table
+     */
+    public static String tableName(String fileName) {
+        int dot = fileName.indexOf('.');
+        return dot < 0 ? fileName : fileName.substring(0, dot);
+    }
+
+    /**
+     * Checks whether a data file is gzip compressed.
+     *
+     * @param fileName the name of the data file
+     * @return true if the name ends with the suffix of compressed files
+     */
+    public static boolean isCompressed(String fileName) {
+        return fileName.endsWith(COMPRESSED_SUFFIX);
+    }
+
+    /**
+     * Returns the stream of the rows of a data file, uncompressing it if needed.
+     *
+     * @param fileName the name of the data file
+     * @param input    the content of the data file
+     * @return the rows
+     * @throws IOException if the compressed stream cannot be read
+     */
+    public static InputStream rows(String fileName, InputStream input) throws IOException {
+        return isCompressed(fileName) ? new GZIPInputStream(input) : input;
+    }
+
+    private static boolean hasOpenQuote(CharSequence record) {
+        int quotes = 0;
+        for (int i = 0; i < record.length(); i++) {
+            if (record.charAt(i) == QUOTE) {
+                quotes++;
+            }
+        }
+        return quotes % 2 != 0;
+    }
+
+    /**
+     * Splits a line into its fields. Double quotes enclose fields, a doubled quote inside is a literal quote.
+     */
+    static List<String> splitLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char current = line.charAt(i);
+            if (quoted) {
+                if (current == QUOTE && i + 1 < line.length() && line.charAt(i + 1) == QUOTE) {
+                    field.append(QUOTE);
+                    i++;
+                } else if (current == QUOTE) {
+                    quoted = false;
+                } else {
+                    field.append(current);
+                }
+            } else if (current == QUOTE) {
+                quoted = true;
+            } else if (current == DELIMITER) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(current);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private static List<Object> keyOf(Object[] values, int size) {
+        List<Object> key = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            key.add(values[i]);
+        }
+        return key;
+    }
+}
@@ -0,0 +1,424 @@
+package com.betalpha.migration;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.Token;
+import com.datastax.driver.core.TypeCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import static com.betalpha.migration.util.Ensure.notNull;
+import static com.betalpha.migration.util.Ensure.notNullOrEmpty;
+import static java.lang.String.format;
+
+/**
+ * Sorts data files by the token of their partition key, so consecutive rows belong to the same partition and
+ * partitions arrive in ring order. Used for data folders with the directive <code>&#64;presort</code>.
+ * <p>
+ * Every file is sorted with an external merge sort: records are collected until the memory of the file is used up,
+ * sorted and spilled to a file in the spill folder, and the spill files are merged into the sorted file at the end.
+ * Rows with the same token keep the order of the source, so a later row of the same primary key still wins. Files
+ * are sorted in parallel, the memory is shared between the threads.
+ * <p>
+ * The sorted file is cached next to its source in the <code>SORTED_FOLDER</code> of the data folder, which is not
+ * loaded as data. The size and modification time the source had when it was sorted are recorded in a
+ * <code>.source</code> file next to the sorted file, which is reused only while the source still has exactly the
+ * recorded size and modification time.
+ */
+public class DataFileSorter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DataFileSorter.class);
+
+    /**
+     * The folder inside a data folder that holds the sorted files.
+     */
+    public static final String SORTED_FOLDER = "_sorted";
+
+    private static final String DATA_ENCODING = "UTF-8";
+
+    /**
+     * The suffix of the file recording the size and modification time of the source of a sorted file.
+     */
+    private static final String SOURCE_STATE_SUFFIX = ".source";
+
+    /**
+     * Estimated memory of a record besides its characters: the entry, the string and the token.
+     */
+    private static final int RECORD_OVERHEAD_BYTES = 96;
+
+    private final Cluster cluster;
+    private final String keyspaceName;
+    private final File spillFolder;
+    private final long memoryBytes;
+    private final int parallelism;
+
+    /**
+     * Creates a new sorter.
+     *
+     * @param cluster      the cluster the schema and the partitioner are taken from
+     * @param keyspaceName the keyspace containing the tables
+     * @param spillFolder  the folder sorted runs are written to while a file is sorted
+     * @param memoryBytes  the memory used for records over all files sorted at the same time
+     * @param parallelism  the number of files sorted at the same time
+     */
+    public DataFileSorter(Cluster cluster, String keyspaceName, File spillFolder, long memoryBytes,
+                          int parallelism) {
+        this.cluster = notNull(cluster, "cluster");
+        this.keyspaceName = notNullOrEmpty(keyspaceName, "keyspaceName");
+        this.spillFolder = notNull(spillFolder, "spillFolder");
+        this.parallelism = Math.max(1, parallelism);
+        this.memoryBytes = Math.max(1024 * 1024, memoryBytes);
+    }
+
+    /**
+     * Sorts the data files, or reuses their cached sorted files.
+     *
+     * @param files the data files, see {@link CsvDataLoader#tableName(String)}
+     * @return the sorted files in the order of the given files, named like their source
+     * @throws MigrationException if a file cannot be read, parsed or written
+     */
+    public File[] sort(File[] files) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(1, files.length)),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "data-file-sorter");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        long fileMemory = memoryBytes / Math.min(parallelism, Math.max(1, files.length));
+        try {
+            List<Future<File>> futures = new ArrayList<>(files.length);
+            for (File file : files) {
+                futures.add(executor.submit(() -> sortedFile(file, fileMemory)));
+            }
+            File[] sorted = new File[files.length];
+            for (int i = 0; i < files.length; i++) {
+                sorted[i] = futures.get(i).get();
+            }
+            return sorted;
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            throw cause instanceof MigrationException ? (MigrationException) cause
+                    : new MigrationException("Error while sorting data files", cause);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new MigrationException("Interrupted while sorting data files", exception);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private File sortedFile(File source, long fileMemory) throws IOException {
+        File folder = new File(source.getParentFile(), SORTED_FOLDER);
+        File target = new File(folder, source.getName());
+        File sourceState = new File(folder, source.getName() + SOURCE_STATE_SUFFIX);
+        String state = source.length() + " " + source.lastModified();
+        if (target.isFile() && sourceState.isFile()
+                && state.equals(new String(Files.readAllBytes(sourceState.toPath()), DATA_ENCODING).trim())) {
+            LOGGER.info("Using sorted file {}.", target);
+            return target;
+        }
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Unable to create folder " + folder);
+        }
+        // without the state a sorted file that is only partly replaced is never reused
+        Files.deleteIfExists(sourceState.toPath());
+        File temporary = new File(folder, "_" + source.getName());
+        sort(source, temporary, fileMemory);
+        Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.write(sourceState.toPath(), state.getBytes(DATA_ENCODING));
+        return target;
+    }
+
+    private void sort(File source, File target, long fileMemory) throws IOException {
+        long start = System.currentTimeMillis();
+        TokenFunction tokens = new TokenFunction(CsvDataLoader.tableName(source.getName()));
+        long records = sort(source, target, fileMemory, spillFolder, tokens);
+        LOGGER.info("Sorted {} rows of {} by token within {} ms.", records, source,
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Sorts a data file by the key of its records with an external merge sort. Records with equal keys keep their
+     * order.
+     *
+     * @param source      the data file
+     * @param target      the file the sorted records are written to
+     * @param fileMemory  the memory used for records before they are spilled
+     * @param spillFolder the folder the sorted runs are written to
+     * @param keys        computes the key of a record
+     * @return the number of records
+     * @throws IOException if a file cannot be read or written
+     */
+    static <K extends Comparable<K>> long sort(File source, File target, long fileMemory, File spillFolder,
+                                               SortKeys<K> keys) throws IOException {
+        String table = CsvDataLoader.tableName(source.getName());
+        List<File> spills = new ArrayList<>();
+        List<SortEntry<K>> entries = new ArrayList<>();
+        long[] usedMemory = {0};
+        long records;
+        try {
+            try (InputStream input = CsvDataLoader.rows(source.getName(), new FileInputStream(source))) {
+                records = CsvDataLoader.readRecords(table, input, (record, fields, lineNumber) -> {
+                    entries.add(new SortEntry<>(keys.keyOf(fields, lineNumber), record, 0));
+                    usedMemory[0] += record.length() * 2L + RECORD_OVERHEAD_BYTES;
+                    if (usedMemory[0] >= fileMemory) {
+                        spills.add(spill(entries, source.getName(), spills.size(), spillFolder, keys));
+                        entries.clear();
+                        usedMemory[0] = 0;
+                    }
+                });
+            }
+            try (Writer output = open(target)) {
+                if (spills.isEmpty()) {
+                    entries.sort(Comparator.naturalOrder());
+                    for (SortEntry<K> entry : entries) {
+                        output.append(entry.record).append('\n');
+                    }
+                } else {
+                    if (!entries.isEmpty()) {
+                        spills.add(spill(entries, source.getName(), spills.size(), spillFolder, keys));
+                        entries.clear();
+                    }
+                    LOGGER.debug("Merging {} spill files of {}.", spills.size(), source);
+                    merge(spills, output, keys);
+                }
+            }
+        } finally {
+            spills.forEach(File::delete);
+        }
+        return records;
+    }
+
+    /**
+     * Sorts the records collected so far and writes them to a new spill file.
+     */
+    private static <K extends Comparable<K>> File spill(List<SortEntry<K>> entries, String fileName, int index,
+                                                        File spillFolder, SortKeys<K> keys) throws IOException {
+        if (!spillFolder.isDirectory() && !spillFolder.mkdirs()) {
+            throw new IOException("Unable to create folder " + spillFolder);
+        }
+        entries.sort(Comparator.naturalOrder());
+        File spill = File.createTempFile(fileName + "." + index + ".", ".spill", spillFolder);
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spill),
+                64 * 1024))) {
+            output.writeInt(entries.size());
+            for (SortEntry<K> entry : entries) {
+                output.writeUTF(keys.serialize(entry.key));
+                byte[] record = entry.record.getBytes(StandardCharsets.UTF_8);
+                output.writeInt(record.length);
+                output.write(record);
+            }
+        }
+        return spill;
+    }
+
+    /**
+     * Merges the spill files into the output. On equal keys the earlier spill file comes first, which keeps the
+     * order of the source.
+     */
+    private static <K extends Comparable<K>> void merge(List<File> spills, Writer output, SortKeys<K> keys)
+            throws IOException {
+        PriorityQueue<SpillReader<K>> queue = new PriorityQueue<>();
+        List<SpillReader<K>> readers = new ArrayList<>(spills.size());
+        try {
+            for (int i = 0; i < spills.size(); i++) {
+                SpillReader<K> reader = new SpillReader<>(spills.get(i), i, keys);
+                readers.add(reader);
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+            while (!queue.isEmpty()) {
+                SpillReader<K> reader = queue.poll();
+                output.append(reader.current.record).append('\n');
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+        } finally {
+            for (SpillReader<K> reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private static Writer open(File file) throws IOException {
+        OutputStream stream = new FileOutputStream(file);
+        if (CsvDataLoader.isCompressed(file.getName())) {
+            stream = new GZIPOutputStream(stream, 64 * 1024);
+        }
+        return new BufferedWriter(new OutputStreamWriter(stream, DATA_ENCODING), 64 * 1024);
+    }
+
+    /**
+     * Computes the key records are sorted by and converts it to and from the text kept in spill files.
+     *
+     * @param <K> the type of the key
+     */
+    interface SortKeys<K extends Comparable<K>> {
+        /**
+         * Computes the key of a record.
+         *
+         * @param fields     the unparsed values of the record
+         * @param lineNumber the line the record starts at, used in error messages
+         * @return the key
+         * @throws MigrationException if the key cannot be computed
+         */
+        K keyOf(List<String> fields, long lineNumber);
+
+        /**
+         * Converts a key into the text kept in spill files.
+         */
+        String serialize(K key);
+
+        /**
+         * Reads a key back from the text kept in spill files.
+         */
+        K deserialize(String key);
+    }
+
+    /**
+     * Computes the token of a record from the values of its partition key, the leading columns of the table.
+     */
+    private final class TokenFunction implements SortKeys<Token> {
+        private final String table;
+        private final List<ColumnMetadata> partitionKey;
+        private final List<TypeCodec<Object>> codecs = new ArrayList<>();
+        private final ProtocolVersion protocolVersion;
+        private final Metadata metadata;
+
+        private TokenFunction(String table) {
+            this.table = table;
+            this.metadata = cluster.getMetadata();
+            KeyspaceMetadata keyspace = metadata.getKeyspace(Metadata.quote(keyspaceName));
+            TableMetadata tableMetadata = keyspace == null ? null : keyspace.getTable(table);
+            if (tableMetadata == null) {
+                throw new MigrationException(format("Unknown table %s in keyspace %s", table, keyspaceName), null);
+            }
+            this.partitionKey = tableMetadata.getPartitionKey();
+            CodecRegistry codecRegistry = cluster.getConfiguration().getCodecRegistry();
+            for (ColumnMetadata column : partitionKey) {
+                codecs.add(codecRegistry.codecFor(column.getType()));
+            }
+            this.protocolVersion = cluster.getConfiguration().getProtocolOptions().getProtocolVersion();
+        }
+
+        @Override
+        public Token keyOf(List<String> fields, long lineNumber) {
+            if (fields.size() < partitionKey.size()) {
+                throw new MigrationException(format("Error in line %d of data file for table %s: expected at least"
+                        + " %d values but found %d", lineNumber, table, partitionKey.size(), fields.size()), null);
+            }
+            ByteBuffer[] components = new ByteBuffer[partitionKey.size()];
+            for (int i = 0; i < components.length; i++) {
+                Object value = CsvDataLoader.parse(codecs.get(i), partitionKey.get(i).getType(), fields.get(i),
+                        table, lineNumber);
+                if (value == null) {
+                    throw new MigrationException(format("Error in line %d of data file for table %s: partition key"
+                            + " column %s is empty", lineNumber, table, partitionKey.get(i).getName()), null);
+                }
+                components[i] = codecs.get(i).serialize(value, protocolVersion);
+            }
+            return metadata.newToken(components);
+        }
+
+        @Override
+        public String serialize(Token key) {
+            return key.toString();
+        }
+
+        @Override
+        public Token deserialize(String key) {
+            return metadata.newToken(key);
+        }
+    }
+
+    private static final class SortEntry<K extends Comparable<K>> implements Comparable<SortEntry<K>> {
+        private final K key;
+        private final String record;
+        private final int source;
+
+        private SortEntry(K key, String record, int source) {
+            this.key = key;
+            this.record = record;
+            this.source = source;
+        }
+
+        @Override
+        public int compareTo(SortEntry<K> other) {
+            int result = key.compareTo(other.key);
+            return result != 0 ? result : Integer.compare(source, other.source);
+        }
+    }
+
+    /**
+     * Reads the records of a spill file one after the other.
+     */
+    private static final class SpillReader<K extends Comparable<K>> implements Comparable<SpillReader<K>> {
+        private final DataInputStream input;
+        private final int index;
+        private final SortKeys<K> keys;
+        private int remaining;
+        private SortEntry<K> current;
+
+        private SpillReader(File spill, int index, SortKeys<K> keys) throws IOException {
+            this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(spill), 64 * 1024));
+            this.index = index;
+            this.keys = keys;
+            this.remaining = input.readInt();
+        }
+
+        private boolean next() throws IOException {
+            if (remaining == 0) {
+                current = null;
+                return false;
+            }
+            remaining--;
+            K key = keys.deserialize(input.readUTF());
+            byte[] record = new byte[input.readInt()];
+            input.readFully(record);
+            current = new SortEntry<>(key, new String(record, StandardCharsets.UTF_8), index);
+            return true;
+        }
+
+        private void close() throws IOException {
+            input.close();
+        }
+
+        @Override
+        public int compareTo(SpillReader<K> other) {
+            return current.compareTo(other.current);
+        }
+    }
+}
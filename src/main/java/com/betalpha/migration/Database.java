@@ -1,13 +1,33 @@
 package com.betalpha.migration;
 
+import com.betalpha.migration.resolver.ClassPathLocationScanner;
 import com.datastax.driver.core.*;
+import com.datastax.driver.core.exceptions.AlreadyExistsException;
+import com.datastax.driver.core.exceptions.CodecNotFoundException;
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+import com.datastax.driver.core.exceptions.InvalidTypeException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.util.ObjectUtils;
 
 import java.io.*;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import static java.lang.String.format;
 import static org.cognitor.cassandra.migration.util.Ensure.notNull;
@@ -27,18 +47,60 @@ public class Database implements Closeable {
      */
     private static final String SCHEMA_CF = "schema_migration";
 
+    /**
+     * The name of the table that holds the migration lease
+     */
+    private static final String LOCK_CF = "migration_lock";
+
+    /**
+     * The name of the table that holds the checkpoints of the backfill migrations
+     */
+    private static final String BACKFILL_CF = "migration_backfill";
+
     /**
      * Insert statement that logs a migration into the schema_migration table.
      */
     private static final String INSERT_MIGRATION = "insert into %s"
-            + "(applied_successful, version,data_successful, script_name, script, executed_at) values(?, ?,?, ?, ?, ?)";
+            + "(applied_successful, version,data_successful, script_name, script, executed_at, data_pending)"
+            + " values(?, ?,?, ?, ?, ?, ?)";
 
     /**
      * Statement used to create the table that manages the migrations.
      */
-    private static final String CREATE_MIGRATION_CF = "CREATE TABLE %s"
+    private static final String CREATE_MIGRATION_CF = "CREATE TABLE IF NOT EXISTS %s"
             + " (applied_successful boolean, version int,data_successful boolean, script_name varchar, script text,"
-            + " executed_at timestamp, PRIMARY KEY (applied_successful, version))";
+            + " executed_at timestamp, data_pending boolean, PRIMARY KEY (applied_successful, version))";
+
+    /**
+     * The column marking versions whose data step still has to run. Older versions of the migration wrote
+     * data_successful = false for every data step that failed without stopping the migration, those rows leave the
+     * column empty and are never loaded again.
+     */
+    private static final String DATA_PENDING_COLUMN = "data_pending";
+
+    /**
+     * Statement used to add the data_pending column to migration tables created before it existed.
+     */
+    private static final String ADD_DATA_PENDING_COLUMN = "ALTER TABLE %s ADD " + DATA_PENDING_COLUMN + " boolean";
+
+    /**
+     * Statement used to mark the data step of a version as no longer pending without loading it.
+     */
+    private static final String ACKNOWLEDGE_PENDING_DATA = "update %s set " + DATA_PENDING_COLUMN + " = false"
+            + " where applied_successful = True and version = ?";
+
+    /**
+     * Statement used to create the table that holds the migration lease.
+     */
+    private static final String CREATE_LOCK_CF = "CREATE TABLE IF NOT EXISTS %s"
+            + " (name text PRIMARY KEY, owner text, acquired_at timestamp)";
+
+    /**
+     * Statement used to create the table that holds the checkpoints of the backfill migrations.
+     */
+    private static final String CREATE_BACKFILL_CF = "CREATE TABLE IF NOT EXISTS %s"
+            + " (version int, range_start text, range_end text, rows bigint, completed_at timestamp,"
+            + " PRIMARY KEY (version, range_start, range_end))";
 
     /**
      * The query that retrieves current schema version
@@ -47,20 +109,140 @@ public class Database implements Closeable {
             "select version from %s where applied_successful = True "
                     + "order by version desc limit 1";
 
+    /**
+     * The query that retrieves whether the data of the applied versions was loaded
+     */
+    private static final String DATA_STATE_QUERY =
+            "select version, " + DATA_PENDING_COLUMN + " from %s where applied_successful = True";
+
     /**
      * Error message that is thrown if there is an error during the migration
      */
     private static final String MIGRATION_ERROR_MSG = "Error during migration of script %s while executing '%s'";
 
+    /**
+     * Error message that is thrown if loading the data of a migration fails
+     */
+    private static final String DATA_ERROR_MSG = "Error while loading the data of script %s, version %d is recorded"
+            + " with data_successful = false and its data is loaded again by the next migration";
+
     /**
      * The delimiter that is used between two cql statements.
      */
     private static final String STATEMENT_DELIMITER = ";";
 
+    /**
+     * Pattern matching the statements that only touch data and therefore are sent through the bulk session.
+     */
+    private static final Pattern DML_PATTERN = Pattern.compile("^(insert|update|delete)\\s.*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /**
+     * Pattern matching the start of a batch, which always changes data.
+     */
+    private static final Pattern BATCH_PATTERN = Pattern.compile("^begin\\s.*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /**
+     * Pattern finding the table of a single insert, update or delete, with or without the keyspace in front of it.
+     */
+    private static final Pattern DML_TABLE_PATTERN = Pattern.compile(
+            "^(?:insert\\s+into|update|delete\\s.*?\\bfrom)\\s+(?:[\\w\"]+\\.)?([\\w\"]+).*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /**
+     * Pattern matching a statement that selects the keyspace of the following statements.
+     */
+    private static final Pattern USE_PATTERN = Pattern.compile("^use\\s.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /**
+     * Runs of at least this many inserts with the same shape are executed as prepared statements.
+     */
+    private static final int MIN_INSERT_RUN_LENGTH = 2;
+
+    /**
+     * Lines cqlsh prints when a <code>COPY FROM</code> starts, while it runs and when it ends, used to follow its
+     * progress. The running total is printed every second behind a carriage return, which ends a line for
+     * {@link BufferedReader#readLine()} as well.
+     */
+    private static final Pattern COPY_START_PATTERN = Pattern.compile("^Starting copy of .*");
+    private static final Pattern COPY_PROCESSED_PATTERN = Pattern.compile("^Processed:\\s*(\\d+)\\s+rows.*");
+    private static final Pattern COPY_DONE_PATTERN = Pattern.compile("^(\\d+) rows imported from .*");
+
+    /**
+     * Consistency level of the rows loaded from data files, the same cqlsh uses for <code>COPY</code>.
+     */
+    private static final ConsistencyLevel DATA_CONSISTENCY_LEVEL = ConsistencyLevel.ONE;
+
+    /**
+     * Upper bound of the random pause before a missing bookkeeping table is created, so a fleet starting at the
+     * same moment does not send the same schema change through several coordinators.
+     */
+    private static final long CREATE_TABLE_JITTER_MILLIS = 2000;
+
+    /**
+     * The time to wait for all nodes to agree on the schema after a bookkeeping table was created.
+     */
+    private static final long SCHEMA_AGREEMENT_TIMEOUT_MILLIS = 60000;
+
+    /**
+     * The cqlsh command file written into a data folder. The leading underscore keeps a file left behind by a crash
+     * out of the data files of the next run.
+     */
+    private static final String COMMAND_FILE_NAME = "_command.cql";
+
+    private static final String JAR_PROTOCOL = "jar";
+
+    /**
+     * The loader of data folders in <code>sstable</code> mode, compiled only with the Maven profile sstable.
+     */
+    private static final String SSTABLE_LOADER_CLASS = "com.betalpha.migration.SSTableDataLoader";
+
+    private static final String DATA_ENCODING = "UTF-8";
+
+    private static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    private static final int DEFAULT_BATCH_SIZE = 20;
+
+    private static final int DEFAULT_BACKFILL_PARALLELISM = 8;
+
+    private static final int DEFAULT_BACKFILL_PAGE_SIZE = 1000;
+
+    private static final String DEFAULT_SSTABLE_WORK_FOLDER = "/app/cassandra/sstable";
+
+    private static final String DEFAULT_SSTABLE_LOADER_COMMAND = "sstableloader";
+
+    private static final int DEFAULT_SSTABLE_BUFFER_SIZE_MB = 64;
+
+    private static final int DEFAULT_SSTABLE_WRITER_THREADS = 2;
+
+    private static final String DEFAULT_PRESORT_SPILL_FOLDER = "/app/cassandra/sort";
+
+    private static final long DEFAULT_PRESORT_MEMORY_BYTES = 256L * 1024 * 1024;
+
+    private static final int DEFAULT_PRESORT_PARALLELISM = 4;
+
     private final String keyspaceName;
     private final Cluster cluster;
     private final Session session;
+    private final Session bulkSession;
     private final PreparedStatement logMigrationStatement;
+    private final Map<String, PreparedStatement> preparedInserts = new HashMap<>();
+    private MigrationLease lease;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private int backfillParallelism = DEFAULT_BACKFILL_PARALLELISM;
+    private int backfillPageSize = DEFAULT_BACKFILL_PAGE_SIZE;
+    private File sstableWorkFolder = new File(DEFAULT_SSTABLE_WORK_FOLDER);
+    private String sstableLoaderCommand = DEFAULT_SSTABLE_LOADER_COMMAND;
+    private int sstableBufferSizeMb = DEFAULT_SSTABLE_BUFFER_SIZE_MB;
+    private int sstableWriterThreads = DEFAULT_SSTABLE_WRITER_THREADS;
+    private File presortSpillFolder = new File(DEFAULT_PRESORT_SPILL_FOLDER);
+    private long presortMemoryBytes = DEFAULT_PRESORT_MEMORY_BYTES;
+    private int presortParallelism = DEFAULT_PRESORT_PARALLELISM;
+    private StatementTracer tracer = StatementTracer.DISABLED;
+    private StatementRetry retry = StatementRetry.NONE;
+    private MigrationProgress progress = MigrationProgress.DISABLED;
 
     /**
      * Creates a new instance of the database.
@@ -69,19 +251,38 @@ public class Database implements Closeable {
      * @param keyspaceName the keyspace name that will be managed by this instance
      */
     public Database(Cluster cluster, String keyspaceName) {
+        this(cluster, cluster, keyspaceName);
+    }
+
+    /**
+     * Creates a new instance of the database that sends schema changes and data changes through different clusters,
+     * so both can be tuned for their workload.
+     *
+     * @param cluster      the cluster used for schema changes and the migration bookkeeping
+     * @param bulkCluster  the cluster used for data changes, may be the same instance as <code>cluster</code>
+     * @param keyspaceName the keyspace name that will be managed by this instance
+     */
+    public Database(Cluster cluster, Cluster bulkCluster, String keyspaceName) {
         this.cluster = notNull(cluster, "cluster");
+        notNull(bulkCluster, "bulkCluster");
         this.keyspaceName = notNullOrEmpty(keyspaceName, "keyspaceName");
         session = cluster.connect(keyspaceName);
+        bulkSession = bulkCluster == cluster ? session : bulkCluster.connect(keyspaceName);
         ensureSchemaTable();
         this.logMigrationStatement = session.prepare(format(INSERT_MIGRATION, SCHEMA_CF));
     }
 
     /**
-     * Closes the underlying session object. The cluster will not be touched
+     * Closes the underlying session objects. The clusters will not be touched
      * and will stay open. Call this after all migrations are done.
      * After calling this, this database instance can no longer be used.
      */
     public void close() {
+        this.tracer.close();
+        this.progress.close();
+        if (this.bulkSession != this.session) {
+            this.bulkSession.close();
+        }
         this.session.close();
     }
 
@@ -92,6 +293,17 @@ public class Database implements Closeable {
      * @return the current schema version
      */
     public int getVersion() {
+        return queryVersion(session);
+    }
+
+    /**
+     * Reads the current version of the database schema through the given session without creating the
+     * migration table. Used to check whether a migration is needed before anything else is set up.
+     *
+     * @param session a session connected to the managed keyspace
+     * @return the current schema version, zero if nothing was migrated yet
+     */
+    public static int queryVersion(Session session) {
         ResultSet resultSet = session.execute(format(VERSION_QUERY, SCHEMA_CF));
         Row result = resultSet.one();
         if (result == null) {
@@ -100,6 +312,61 @@ public class Database implements Closeable {
         return result.getInt(0);
     }
 
+    /**
+     * Gets the versions whose script was applied but whose data was not loaded, because loading it failed or the
+     * migration stopped in between. Their data step is repeated before any newer migration runs. Only versions
+     * logged since the data_pending column exists can be pending.
+     *
+     * @return the versions with pending data in ascending order
+     */
+    public SortedSet<Integer> getVersionsWithPendingData() {
+        return queryVersionsWithPendingData(session);
+    }
+
+    /**
+     * Reads the versions with pending data through the given session without creating the migration table.
+     *
+     * @param session a session connected to the managed keyspace
+     * @return the versions with pending data in ascending order
+     * @see #getVersionsWithPendingData()
+     */
+    public static SortedSet<Integer> queryVersionsWithPendingData(Session session) {
+        SortedSet<Integer> versions = new TreeSet<>();
+        ResultSet rows;
+        try {
+            rows = session.execute(format(DATA_STATE_QUERY, SCHEMA_CF));
+        } catch (InvalidQueryException exception) {
+            // the table or its data_pending column was not created yet, nothing can be pending
+            return versions;
+        }
+        for (Row row : rows) {
+            if (!row.isNull(1) && row.getBool(1)) {
+                versions.add(row.getInt(0));
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Marks the data step of a version as no longer pending without loading it. It stays recorded with
+     * data_successful = false.
+     *
+     * @param version the version whose data is not loaded
+     */
+    public void acknowledgePendingData(int version) {
+        retry.execute(session, new SimpleStatement(format(ACKNOWLEDGE_PENDING_DATA, SCHEMA_CF), version)
+                .setConsistencyLevel(ConsistencyLevel.QUORUM), "acknowledge pending data of version " + version);
+    }
+
+    /**
+     * Returns the name of the table that manages the migration scripts.
+     *
+     * @return the name of the schema migration table
+     */
+    public static String getSchemaTableName() {
+        return SCHEMA_CF;
+    }
+
     /**
      * Returns the name of the keyspace managed by this instance.
      *
@@ -110,20 +377,105 @@ public class Database implements Closeable {
     }
 
     /**
-     * Makes sure the schema migration table exists. If it is not available it will be created.
+     * Creates a lease that serializes migrations of this keyspace across all instances.
+     *
+     * @param ttlSeconds the time after which the lease expires unless it is renewed
+     * @return a new lease that is not yet acquired
+     */
+    public MigrationLease createLease(int ttlSeconds) {
+        lease = new MigrationLease(session, LOCK_CF, keyspaceName, ttlSeconds);
+        return lease;
+    }
+
+    /**
+     * Stops the migration if a lease was created and is no longer held. Checked before every statement, insert run,
+     * data file and backfill range, so a long script or data step does not go on after another instance may have
+     * taken over.
+     *
+     * @throws LeaseLostException if the lease is lost
+     */
+    private void ensureLeaseIsHeld() {
+        if (lease != null && !lease.isHeld()) {
+            throw new LeaseLostException(format("Lost the migration lease of keyspace %s, stopping the migration",
+                    keyspaceName));
+        }
+    }
+
+    /**
+     * Makes sure the schema migration and lock tables exist. If they are not available they will be created.
      */
     private void ensureSchemaTable() {
-        if (schemaTablesIsNotExisting()) {
-            createSchemaTable();
+        ensureTable(SCHEMA_CF, CREATE_MIGRATION_CF);
+        ensureDataPendingColumn();
+        ensureTable(LOCK_CF, CREATE_LOCK_CF);
+    }
+
+    /**
+     * Adds the data_pending column to a migration table created by an older version of the migration. Another
+     * instance adding it at the same time is not an error.
+     */
+    private void ensureDataPendingColumn() {
+        if (cluster.getMetadata().getKeyspace(keyspaceName).getTable(SCHEMA_CF)
+                .getColumn(DATA_PENDING_COLUMN) != null) {
+            return;
+        }
+        awaitSchemaAgreement();
+        try {
+            session.execute(format(ADD_DATA_PENDING_COLUMN, SCHEMA_CF));
+        } catch (InvalidQueryException exception) {
+            LOGGER.info("Column {} of table {} was added by another instance.", DATA_PENDING_COLUMN, SCHEMA_CF);
         }
+        awaitSchemaAgreement();
     }
 
-    private boolean schemaTablesIsNotExisting() {
-        return cluster.getMetadata().getKeyspace(keyspaceName).getTable(SCHEMA_CF) == null;
+    /**
+     * Creates a bookkeeping table unless it exists. All instances of a fleet start at the same time and the lock
+     * table does not exist yet to serialize them, so the creation waits for a random pause and checks again before
+     * it sends the schema change. Afterwards it waits until all nodes agree on the schema. A table created by
+     * another instance in the meantime is not an error.
+     */
+    private void ensureTable(String table, String createStatement) {
+        if (!tableIsNotExisting(table)) {
+            return;
+        }
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(CREATE_TABLE_JITTER_MILLIS));
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new MigrationException("Interrupted while creating table " + table, exception);
+        }
+        awaitSchemaAgreement();
+        if (!tableIsNotExisting(table)) {
+            LOGGER.info("Table {} was created by another instance.", table);
+            return;
+        }
+        try {
+            session.execute(format(createStatement, table));
+        } catch (AlreadyExistsException exception) {
+            LOGGER.info("Table {} was created by another instance.", table);
+        }
+        awaitSchemaAgreement();
+    }
+
+    private void awaitSchemaAgreement() {
+        long deadline = System.currentTimeMillis() + SCHEMA_AGREEMENT_TIMEOUT_MILLIS;
+        while (!cluster.getMetadata().checkSchemaAgreement()) {
+            if (System.currentTimeMillis() >= deadline) {
+                LOGGER.warn("Nodes of keyspace {} still disagree on the schema after {} ms.", keyspaceName,
+                        SCHEMA_AGREEMENT_TIMEOUT_MILLIS);
+                return;
+            }
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new MigrationException("Interrupted while waiting for schema agreement", exception);
+            }
+        }
     }
 
-    private void createSchemaTable() {
-        session.execute(format(CREATE_MIGRATION_CF, SCHEMA_CF));
+    private boolean tableIsNotExisting(String table) {
+        return cluster.getMetadata().getKeyspace(keyspaceName).getTable(table) == null;
     }
 
     /**
@@ -138,28 +490,212 @@ public class Database implements Closeable {
         notNull(migration, "migration");
         LOGGER.debug(format("About to executeScript migration %s to version %d", migration.getScriptName(),
                 migration.getVersion()));
-        String lastStatement = null;
         try {
-            for (String statement : migration.getMigrationScript().split(STATEMENT_DELIMITER)) {
-                statement = statement.trim();
-                lastStatement = statement;
-                executeStatement(statement);
-            }
+            runStatements(migration);
             logMigration(migration, true, false);
             LOGGER.debug(format("Successfully applied migration %s to version %d",
                     migration.getScriptName(), migration.getVersion()));
-        } catch (Exception exception) {
+        } catch (LeaseLostException exception) {
+            throw exception;
+        } catch (MigrationException exception) {
             logMigration(migration, false, false);
-            String errorMessage = format(MIGRATION_ERROR_MSG, migration.getScriptName(), lastStatement);
-            throw new MigrationException(errorMessage, exception, migration.getScriptName(), lastStatement);
+            throw exception;
         } finally {
             LOGGER.info("End data migration for script.");
         }
     }
 
+    /**
+     * Executes the statements of a baseline script. Nothing is logged to the migration table, the caller records
+     * the versions the baseline stands for.
+     *
+     * @param baseline the consolidated schema script
+     * @throws MigrationException if a statement fails
+     */
+    public void executeBaseline(DbMigration baseline) {
+        notNull(baseline, "baseline");
+        LOGGER.info(format("Applying baseline %s of version %d to keyspace %s", baseline.getScriptName(),
+                baseline.getVersion(), keyspaceName));
+        runStatements(baseline);
+    }
+
+    private void runStatements(DbMigration migration) {
+        tracer.setContext(migration.getScriptName(), migration.getVersion());
+        ExecutionDirectives directives = migration.getDirectives();
+        if (directives != ExecutionDirectives.NONE) {
+            LOGGER.info("Executing script {} with directives {}.", migration.getScriptName(), directives);
+        }
+        String lastStatement = null;
+        try (ReadTimeoutOverride ignored = overrideReadTimeout(directives.getTimeoutMillis())) {
+            String[] statements = migration.getMigrationScript().split(STATEMENT_DELIMITER);
+            int index = 0;
+            while (index < statements.length) {
+                ensureLeaseIsHeld();
+                String statement = statements[index].trim();
+                lastStatement = statement;
+                List<InsertStatement> insertRun = collectInsertRun(statements, index);
+                if (insertRun.size() >= MIN_INSERT_RUN_LENGTH) {
+                    executeInsertRun(insertRun, directives);
+                    index += insertRun.size();
+                } else {
+                    executeStatement(statement, directives);
+                    index++;
+                }
+            }
+        } catch (LeaseLostException exception) {
+            throw exception;
+        } catch (Exception exception) {
+            if (exception instanceof MigrationException && ((MigrationException) exception).getStatement() != null) {
+                lastStatement = ((MigrationException) exception).getStatement();
+            }
+            String errorMessage = format(MIGRATION_ERROR_MSG, migration.getScriptName(), lastStatement);
+            throw new MigrationException(errorMessage, exception, migration.getScriptName(), lastStatement);
+        }
+    }
+
+    /**
+     * Executes a backfill migration and logs it in the migration table. The source table is copied in token ranges,
+     * ranges completed by an earlier, interrupted run are skipped.
+     *
+     * @param migration the migration holding the backfill
+     * @throws MigrationException if the backfill fails
+     */
+    public void executeBackfill(DbMigration migration) {
+        notNull(migration.getBackfill(), "backfill");
+        LOGGER.info(format("Executing %s for version %d", migration.getMigrationScript(), migration.getVersion()));
+        tracer.setContext(migration.getScriptName(), migration.getVersion());
+        ensureTable(BACKFILL_CF, CREATE_BACKFILL_CF);
+        try {
+            long rows = new BackfillRunner(session, bulkSession, keyspaceName, BACKFILL_CF, backfillParallelism,
+                    backfillPageSize, maxInFlight, batchSize, tracer, retry, this::ensureLeaseIsHeld)
+                    .run(migration.getVersion(),
+                    migration.getBackfill());
+            logMigration(migration, true, true);
+            LOGGER.info(format("Backfill %s wrote %d rows", migration.getScriptName(), rows));
+        } catch (LeaseLostException exception) {
+            throw exception;
+        } catch (RuntimeException exception) {
+            // driver errors of the checkpoints are not wrapped by the runner
+            logMigration(migration, false, false);
+            throw new MigrationException(format("Error during backfill %s: %s", migration.getScriptName(),
+                    exception.getMessage()), exception, migration.getScriptName(),
+                    exception instanceof MigrationException ? ((MigrationException) exception).getStatement() : null);
+        }
+    }
+
+    /**
+     * Checks whether the keyspace contains anything besides the tables used to manage the migrations.
+     *
+     * @return true if there are no user tables and types in the keyspace
+     */
+    public boolean isKeyspaceEmpty() {
+        KeyspaceMetadata keyspace = cluster.getMetadata().getKeyspace(keyspaceName);
+        return keyspace.getUserTypes().isEmpty() && keyspace.getTables().stream()
+                .allMatch(table -> isManagedTable(table.getName()));
+    }
+
+    private static boolean isManagedTable(String table) {
+        return SCHEMA_CF.equals(table) || LOCK_CF.equals(table) || BACKFILL_CF.equals(table)
+                || StatementTracer.TRACE_CF.equals(table);
+    }
+
+    /**
+     * Executes the statements of a script that change data, after a baseline created the schema of the script:
+     * <code>USE</code> statements, inserts, updates, deletes and batches. Schema changes are left out, the baseline
+     * holds their outcome. Writes to tables that do not exist in the keyspace are skipped, a later script dropped
+     * them. The outcome is logged in the migration table like {@link #executeScript(DbMigration)} does.
+     *
+     * @param migration the migration covered by the baseline
+     * @throws MigrationException if a statement fails
+     */
+    public void executeDataChanges(DbMigration migration) {
+        notNull(migration, "migration");
+        StringBuilder script = new StringBuilder();
+        for (String statement : migration.getMigrationScript().split(STATEMENT_DELIMITER)) {
+            String trimmed = statement.trim();
+            Matcher dmlTable = DML_TABLE_PATTERN.matcher(trimmed);
+            if (dmlTable.matches() && tableIsNotExisting(dmlTable.group(1))) {
+                LOGGER.info("Skipping '{}' of script {}, its table does not exist in keyspace {}.", trimmed,
+                        migration.getScriptName(), keyspaceName);
+            } else if (USE_PATTERN.matcher(trimmed).matches() || DML_PATTERN.matcher(trimmed).matches()
+                    || BATCH_PATTERN.matcher(trimmed).matches()) {
+                script.append(trimmed).append(STATEMENT_DELIMITER).append('\n');
+            }
+        }
+        executeScript(new DbMigration(migration.getScriptName(), migration.getVersion(), script.toString(),
+                migration.getDirectives()));
+    }
+
+    /**
+     * Records a version that is covered by a baseline as applied without executing anything.
+     *
+     * @param migration the migration covered by the baseline
+     */
+    public void recordBaselined(DbMigration migration) {
+        logMigration(migration, true, null);
+    }
+
+    /**
+     * Builds a consolidated schema script from the current cluster metadata of the keyspace. The tables that manage
+     * the migrations are left out. Every statement is put on a single line, so the script can be read back with
+     * the usual comment handling.
+     *
+     * @return the schema of the keyspace as cql script
+     */
+    public String exportBaseline() {
+        KeyspaceMetadata keyspace = cluster.getMetadata().getKeyspace(keyspaceName);
+        String managedTables = "(?is)^create\\s+table\\s+(\"?" + Pattern.quote(keyspace.getName())
+                + "\"?\\.)?\"?(" + SCHEMA_CF + "|" + LOCK_CF + "|" + BACKFILL_CF + "|" + StatementTracer.TRACE_CF
+                + ")\"?\\s.*";
+        StringBuilder baseline = new StringBuilder();
+        for (String statement : keyspace.exportAsString().split(";\\s*\\n")) {
+            statement = statement.trim();
+            if (statement.isEmpty() || statement.matches(managedTables)) {
+                continue;
+            }
+            statement = statement.replaceAll("\\s*\\n\\s*", " ");
+            if (statement.toUpperCase().startsWith("CREATE KEYSPACE ")
+                    && !statement.toUpperCase().startsWith("CREATE KEYSPACE IF NOT EXISTS ")) {
+                statement = "CREATE KEYSPACE IF NOT EXISTS " + statement.substring("CREATE KEYSPACE ".length());
+            }
+            baseline.append(statement.endsWith(STATEMENT_DELIMITER) ? statement : statement + STATEMENT_DELIMITER)
+                    .append('\n');
+        }
+        return baseline.toString();
+    }
+
+    /**
+     * Loads the data folder of a migration and logs the outcome in the migration table.
+     *
+     * @param migration   the migration the data belongs to
+     * @param folderPath  the folder containing the data folders of all versions
+     * @param command     the cqlsh command the data files are loaded with
+     * @param finalCustom whether the data folders are looked up on the classpath
+     * @throws MigrationException if loading the data fails, after logging it with data_successful = false
+     */
     public void executeData(DbMigration migration, String folderPath, String command, boolean finalCustom) {
+        executeData(migration, folderPath, command, finalCustom, false);
+    }
+
+    /**
+     * Loads the data folder of a migration and logs the outcome in the migration table.
+     *
+     * @param migration         the migration the data belongs to
+     * @param folderPath        the folder containing the data folders of all versions
+     * @param command           the cqlsh command the data files are loaded with
+     * @param finalCustom       whether the data folders are looked up on the classpath
+     * @param skipUnknownTables true to skip the files of tables that do not exist, used when the data of a version
+     *                          is loaded into the schema of a later baseline that dropped some of its tables
+     * @throws MigrationException if loading the data fails, after logging it with data_successful = false
+     */
+    public void executeData(DbMigration migration, String folderPath, String command, boolean finalCustom,
+                            boolean skipUnknownTables) {
         LOGGER.info("Begin data migration for data, custom profile={}.", finalCustom);
         notNull(folderPath, "migration");
+        ensureLeaseIsHeld();
+        tracer.setContext(migration.getScriptName(), migration.getVersion());
+        List<File> uncompressedFiles = new ArrayList<>();
+        File commandFile = null;
         try {
             File folder;
             if (finalCustom) {
@@ -170,6 +706,12 @@ public class Database implements Closeable {
                     LOGGER.info("End data migration for data.");
                     return;
                 }
+                if (JAR_PROTOCOL.equals(url.getProtocol())) {
+                    String location = folderPath + "/" + migration.getVersion();
+                    loadClasspathData(migration, location, url, migration.getDirectives()
+                            .overriddenBy(classpathFolderDirectives(location)), skipUnknownTables);
+                    return;
+                }
                 folder = new File(url.getPath());
             } else {
                 folder = new File(folderPath + "/" + migration.getVersion());
@@ -181,47 +723,564 @@ public class Database implements Closeable {
                 LOGGER.info("End data migration for data.");
                 return;
             }
-            File[] files = folder.listFiles();
+            File[] files = folder.listFiles((dir, name) -> isLoaded(name, skipUnknownTables));
             LOGGER.info("Has {} file in {}.", files.length, folderPath + "/" + migration.getVersion());
+            ExecutionDirectives directives = migration.getDirectives().overriddenBy(folderDirectives(folder));
+            if (directives.isPresort()) {
+                files = new DataFileSorter(cluster, keyspaceName, presortSpillFolder, presortMemoryBytes,
+                        presortParallelism).sort(files);
+            }
+            Map<String, Long> fileSizes = new LinkedHashMap<>();
+            for (File file : files) {
+                fileSizes.put(file.getName(), file.length());
+            }
+            progress.start(migration.getScriptName(), migration.getVersion(), fileSizes);
+            if (directives.getDataMode() == ExecutionDirectives.DataMode.SSTABLE) {
+                Map<String, Callable<InputStream>> dataFiles = new LinkedHashMap<>();
+                for (File file : files) {
+                    dataFiles.put(file.getName(), () -> CsvDataLoader.rows(file.getName(),
+                            progress.track(new FileInputStream(file))));
+                }
+                ensureLeaseIsHeld();
+                loadSSTables(migration, dataFiles, directives);
+                return;
+            }
             StringBuilder fileContent = new StringBuilder("use bar;\n");
+            fileContent.append("consistency " + directives.getConsistencyLevel(DATA_CONSISTENCY_LEVEL) + ";\n");
+            String copyOptions = directives.getParallelism(0) > 0
+                    ? " with numprocesses = " + directives.getParallelism(0) : "";
             for (int i = 0; i < files.length; i++) {
                 File file = files[i];
-                fileContent.append("copy " + file.getName() + " from '" + file.getAbsolutePath() + "';\n");
+                File source = file;
+                if (CsvDataLoader.isCompressed(file.getName())) {
+                    source = uncompress(file);
+                    uncompressedFiles.add(source);
+                }
+                fileContent.append("copy " + CsvDataLoader.tableName(file.getName()) + " from '"
+                        + source.getAbsolutePath() + "'" + copyOptions + ";\n");
             }
-            String filePath = folder.getAbsolutePath() + "/command.cql";
+            if (directives.getTimeoutMillis() != null) {
+                command = command.replace("cqlsh ", format("cqlsh --request-timeout=%d ",
+                        Math.max(1, directives.getTimeoutMillis() / 1000)));
+            }
+            commandFile = new File(folder, COMMAND_FILE_NAME);
+            String filePath = commandFile.getAbsolutePath();
             LOGGER.info("Command file path={}.", filePath);
             FileWriter fileWriter = new FileWriter(filePath);
             BufferedWriter out = new BufferedWriter(fileWriter);
             out.write(fileContent.toString());
             out.close();
-            Process p = Runtime.getRuntime().exec(command + folder.getAbsolutePath() + "/command.cql");
+            ensureLeaseIsHeld();
+            Process p = Runtime.getRuntime().exec(command + filePath);
             BufferedReader stdInput = new BufferedReader(new InputStreamReader(p.getInputStream()));
             BufferedReader stdError = new BufferedReader(new InputStreamReader(p.getErrorStream()));
             String s;
+            int copyIndex = 0;
+            long copyRows = 0;
             while ((s = stdInput.readLine()) != null) {
+                Matcher copyProcessed = COPY_PROCESSED_PATTERN.matcher(s.trim());
+                if (copyProcessed.matches()) {
+                    // printed every second, the reports show the rows instead
+                    LOGGER.debug(s);
+                    long processed = Long.parseLong(copyProcessed.group(1));
+                    progress.addRows(Math.max(0, processed - copyRows));
+                    copyRows = Math.max(copyRows, processed);
+                    continue;
+                }
                 LOGGER.info(s);
+                Matcher copyDone = COPY_DONE_PATTERN.matcher(s.trim());
+                if (COPY_START_PATTERN.matcher(s.trim()).matches() && copyIndex < files.length) {
+                    progress.startFile(files[copyIndex].getName());
+                    copyRows = 0;
+                } else if (copyDone.matches() && copyIndex < files.length) {
+                    progress.addRows(Math.max(0, Long.parseLong(copyDone.group(1)) - copyRows));
+                    progress.finishFile(files[copyIndex].getName(), files[copyIndex].length());
+                    copyRows = 0;
+                    copyIndex++;
+                }
             }
             while ((s = stdError.readLine()) != null) {
                 LOGGER.error("Std ERROR : " + s);
             }
+            int exitCode = p.waitFor();
+            if (exitCode != 0) {
+                throw new MigrationException(format("cqlsh exited with code %d while loading %s", exitCode,
+                        filePath), null, migration.getScriptName());
+            }
             logMigration(migration, true, true);
             LOGGER.debug(format("Successfully applied migration %s to version %d",
                     migration.getScriptName(), migration.getVersion()));
-            File tempFile = new File(filePath);
-            tempFile.delete();
+        } catch (LeaseLostException exception) {
+            throw exception;
         } catch (Exception exception) {
-            exception.printStackTrace();
+            LOGGER.error(format("Data migration of script %s failed", migration.getScriptName()), exception);
             logMigration(migration, true, false);
             LOGGER.info("End data migration for data.");
+            throw new MigrationException(format(DATA_ERROR_MSG, migration.getScriptName(), migration.getVersion()),
+                    exception, migration.getScriptName());
+        } finally {
+            progress.finish();
+            uncompressedFiles.forEach(File::delete);
+            if (commandFile != null) {
+                commandFile.delete();
+            }
         }
     }
 
 
-    private void executeStatement(String statement) {
+    /**
+     * Loads the data files of a data folder that lies inside a jar. cqlsh cannot read those files, so they are
+     * streamed from the jar and written through the driver.
+     *
+     * @param migration  the migration the data belongs to
+     * @param location   the location of the data folder on the classpath
+     * @param url        the url of the data folder inside the jar
+     * @param directives        the directives of the script combined with the ones of the data folder
+     * @param skipUnknownTables true to skip the files of tables that do not exist
+     * @throws IOException if reading a data file fails
+     */
+    private void loadClasspathData(DbMigration migration, String location, URL url, ExecutionDirectives directives,
+                                   boolean skipUnknownTables) throws IOException {
+        Set<String> resources = ClassPathLocationScanner.forUrl(url).findResourceNames(location, url).stream()
+                .filter(resource -> isLoaded(resource.substring(resource.lastIndexOf('/') + 1), skipUnknownTables))
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+        LOGGER.info("Has {} file in {} with directives {}.", resources.size(), location, directives);
+        if (directives.isPresort()) {
+            LOGGER.warn("Data files in {} are loaded unsorted, presort only applies to data folders on the file"
+                    + " system.", location);
+        }
+        Map<String, Long> fileSizes = new LinkedHashMap<>();
+        for (String resource : resources) {
+            fileSizes.put(resource.substring(resource.lastIndexOf('/') + 1), resourceSize(resource));
+        }
+        progress.start(migration.getScriptName(), migration.getVersion(), fileSizes);
+        if (directives.getDataMode() == ExecutionDirectives.DataMode.SSTABLE) {
+            Map<String, Callable<InputStream>> dataFiles = new LinkedHashMap<>();
+            for (String resource : resources) {
+                String fileName = resource.substring(resource.lastIndexOf('/') + 1);
+                dataFiles.put(fileName, () -> CsvDataLoader.rows(fileName,
+                        progress.track(getClass().getClassLoader().getResourceAsStream(resource))));
+            }
+            loadSSTables(migration, dataFiles, directives);
+            return;
+        }
+        CsvDataLoader loader = new CsvDataLoader(bulkSession, keyspaceName,
+                directives.getConsistencyLevel(DATA_CONSISTENCY_LEVEL), directives.getParallelism(maxInFlight),
+                batchSize, tracer, retry);
+        loader.setProgress(progress);
+        for (String resource : resources) {
+            String fileName = resource.substring(resource.lastIndexOf('/') + 1);
+            String table = CsvDataLoader.tableName(fileName);
+            ensureLeaseIsHeld();
+            progress.startFile(fileName);
+            try (ReadTimeoutOverride ignored = overrideReadTimeout(directives.getTimeoutMillis());
+                 InputStream input = CsvDataLoader.rows(fileName,
+                         progress.track(getClass().getClassLoader().getResourceAsStream(resource)))) {
+                long rows = loader.load(table, input);
+                LOGGER.info("Loaded {} rows from {} into table {}.", rows, resource, table);
+            }
+            progress.finishFile(fileName, 0);
+        }
+        logMigration(migration, true, true);
+        LOGGER.debug(format("Successfully applied migration %s to version %d",
+                migration.getScriptName(), migration.getVersion()));
+        LOGGER.info("End data migration for data.");
+    }
+
+    /**
+     * Loads data files by writing them as SSTables and streaming them with the bulk loader, see
+     * <code>SSTableDataLoader</code>. The parallelism directive sets the number of files written at the same time.
+     *
+     * @param migration  the migration the data belongs to
+     * @param files      the data files by file name with a way to open them
+     * @param directives the directives of the script combined with the ones of the data folder
+     * @throws MigrationException if the build does not contain the SSTable loader
+     */
+    private void loadSSTables(DbMigration migration, Map<String, Callable<InputStream>> files,
+                              ExecutionDirectives directives) {
+        BulkDataLoader loader = newSSTableLoader(directives.getParallelism(sstableWriterThreads));
+        loader.setProgress(progress);
+        long rows = loader.load(files);
+        LOGGER.info("Loaded {} rows from {} files as SSTables.", rows, files.size());
+        logMigration(migration, true, true);
+        LOGGER.debug(format("Successfully applied migration %s to version %d",
+                migration.getScriptName(), migration.getVersion()));
+        LOGGER.info("End data migration for data.");
+    }
+
+    /**
+     * Creates the SSTable loader, which is looked up by name because it is only part of builds with the Maven profile
+     * <code>sstable</code>.
+     */
+    private BulkDataLoader newSSTableLoader(int writerThreads) {
+        try {
+            return (BulkDataLoader) Class.forName(SSTABLE_LOADER_CLASS)
+                    .getConstructor(Cluster.class, String.class, File.class, String.class, int.class, int.class)
+                    .newInstance(cluster, keyspaceName, sstableWorkFolder, sstableLoaderCommand, sstableBufferSizeMb,
+                            writerThreads);
+        } catch (ClassNotFoundException | NoClassDefFoundError exception) {
+            throw new MigrationException("Data folders with the directive @mode sstable need a build with the Maven"
+                    + " profile sstable", exception);
+        } catch (ReflectiveOperationException exception) {
+            throw new MigrationException("Unable to create the SSTable loader", exception);
+        }
+    }
+
+    /**
+     * Returns the size of a resource, -1 if it cannot be determined.
+     */
+    private long resourceSize(String resource) {
+        try {
+            URL url = getClass().getClassLoader().getResource(resource);
+            return url == null ? -1 : url.openConnection().getContentLengthLong();
+        } catch (IOException exception) {
+            return -1;
+        }
+    }
+
+    /**
+     * Uncompresses a data file next to itself for cqlsh, which cannot read compressed files. The uncompressed file
+     * starts with an underscore, so it is never picked up as data file itself.
+     *
+     * @param file the compressed data file
+     * @return the uncompressed file, to be deleted by the caller
+     * @throws IOException if the file cannot be uncompressed
+     */
+    private static File uncompress(File file) throws IOException {
+        String name = file.getName();
+        File target = new File(file.getParentFile(), "_" + name.substring(0, name.length() - ".gz".length()));
+        try (InputStream input = CsvDataLoader.rows(name, new FileInputStream(file));
+             OutputStream output = new FileOutputStream(target)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = input.read(buffer)) >= 0) {
+                output.write(buffer, 0, read);
+            }
+        } catch (IOException | RuntimeException exception) {
+            target.delete();
+            throw exception;
+        }
+        return target;
+    }
+
+    /**
+     * Exports all rows of a table into data files, e.g. to refresh the reference data of a data folder. The table
+     * is read in token ranges through the bulk session, see {@link CsvDataExporter}.
+     *
+     * @param table       the name of the table
+     * @param folder      the folder the data files are written to
+     * @param compress    whether the files are gzip compressed
+     * @param chunkRows   the number of rows after which a new file is started, zero or less for a single file
+     * @param parallelism the maximum number of token ranges read at the same time
+     * @param pageSize    the number of rows fetched with one request
+     * @return the files that were written
+     * @throws IOException if writing a file fails
+     */
+    public List<File> exportData(String table, File folder, boolean compress, long chunkRows, int parallelism,
+                                 int pageSize) throws IOException {
+        return new CsvDataExporter(bulkSession, keyspaceName, DATA_CONSISTENCY_LEVEL, parallelism, pageSize, retry)
+                .export(table, folder, compress, chunkRows);
+    }
+
+    /**
+     * Files in a data folder starting with an underscore, like the directives file, are not loaded as data.
+     */
+    private static boolean isDataFolderControlFile(String name) {
+        return name.startsWith("_");
+    }
+
+    private boolean isLoaded(String fileName, boolean skipUnknownTables) {
+        if (isDataFolderControlFile(fileName)) {
+            return false;
+        }
+        if (skipUnknownTables && tableIsNotExisting(CsvDataLoader.tableName(fileName))) {
+            LOGGER.info("Skipping data file {}, its table does not exist in keyspace {}.", fileName, keyspaceName);
+            return false;
+        }
+        return true;
+    }
+
+    private ExecutionDirectives folderDirectives(File folder) throws IOException {
+        File file = new File(folder, ExecutionDirectives.DIRECTIVES_FILE);
+        if (!file.isFile()) {
+            return ExecutionDirectives.NONE;
+        }
+        return readDirectives(new FileInputStream(file), file.getPath());
+    }
+
+    private ExecutionDirectives classpathFolderDirectives(String location) throws IOException {
+        String resource = location + "/" + ExecutionDirectives.DIRECTIVES_FILE;
+        InputStream input = getClass().getClassLoader().getResourceAsStream(resource);
+        if (input == null) {
+            return ExecutionDirectives.NONE;
+        }
+        return readDirectives(input, resource);
+    }
+
+    private static ExecutionDirectives readDirectives(InputStream input, String source) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, DATA_ENCODING))) {
+            List<String> lines = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+            return ExecutionDirectives.parse(lines, source);
+        }
+    }
+
+    /**
+     * Raises the read timeout of the clusters for the duration of a migration that declares a timeout. The driver
+     * reads the socket options for every request, so the change applies to all statements sent until the returned
+     * object is closed.
+     *
+     * @param timeoutMillis the timeout to use or null to keep the configured one
+     * @return restores the configured timeouts when closed
+     */
+    private ReadTimeoutOverride overrideReadTimeout(Integer timeoutMillis) {
+        return new ReadTimeoutOverride(timeoutMillis, cluster, bulkSession.getCluster());
+    }
+
+    /**
+     * Collects the inserts starting at the given index that all have the same shape.
+     *
+     * @return the run of inserts, empty if the statement at the index is no plain insert
+     */
+    private List<InsertStatement> collectInsertRun(String[] statements, int index) {
+        List<InsertStatement> run = new ArrayList<>();
+        InsertStatement first = InsertStatement.parse(statements[index].trim());
+        if (first == null) {
+            return run;
+        }
+        run.add(first);
+        for (int i = index + 1; i < statements.length; i++) {
+            InsertStatement next = InsertStatement.parse(statements[i].trim());
+            if (next == null || !next.getShape().equals(first.getShape())) {
+                break;
+            }
+            run.add(next);
+        }
+        return run;
+    }
+
+    /**
+     * Executes a run of inserts with the same shape through one prepared statement. The literals of every insert are
+     * bound to the prepared statement, the statements are sent asynchronously and grouped by partition. The method
+     * returns after all of them completed, so the statements following the run still see all rows. Prepared
+     * statements are reused until the next schema change. Inserts whose literals cannot be bound fall back to plain
+     * statements, which the writer gives a client side timestamp as well.
+     */
+    private void executeInsertRun(List<InsertStatement> run, ExecutionDirectives directives) {
+        InsertStatement first = run.get(0);
+        LOGGER.debug(format("Executing %d inserts into %s as prepared statement", run.size(), first.getTable()));
+        // an unqualified table is resolved in the keyspace selected when the statement is prepared
+        PreparedStatement prepared = preparedInserts.computeIfAbsent(
+                bulkSession.getLoggedKeyspace() + ":" + first.toPreparedQuery(),
+                key -> bulkSession.prepare(first.toPreparedQuery()));
+        ConsistencyLevel consistencyLevel = directives.getConsistencyLevel(ConsistencyLevel.QUORUM);
+        int[] partitionKeyIndexes = keyIndexes(first, true);
+        int[] primaryKeyIndexes = keyIndexes(first, false);
+        AsyncStatementWriter writer = new AsyncStatementWriter(bulkSession, directives.getParallelism(maxInFlight),
+                batchSize, tracer, retry);
+        for (InsertStatement insert : run) {
+            Object[] values = new Object[insert.getValues().size()];
+            Statement statement = bindLiterals(prepared, insert, values);
+            if (statement == null) {
+                statement = new SimpleStatement(insert.getStatement()).setConsistencyLevel(consistencyLevel);
+                writer.write(statement, insert.getStatement());
+            } else {
+                // an insert of literal values always writes the same cells, so it is safe to apply it twice
+                statement.setConsistencyLevel(consistencyLevel).setIdempotent(true);
+                writer.write(statement, keyOf(values, partitionKeyIndexes), keyOf(values, primaryKeyIndexes),
+                        insert.getStatement());
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Binds the literals of the insert to the prepared statement by parsing them with the codec of the column type.
+     *
+     * @param values receives the parsed values
+     * @return the bound statement or null if a literal could not be parsed
+     */
+    private BoundStatement bindLiterals(PreparedStatement prepared, InsertStatement insert, Object[] values) {
+        CodecRegistry codecRegistry = bulkSession.getCluster().getConfiguration().getCodecRegistry();
+        ColumnDefinitions variables = prepared.getVariables();
+        BoundStatement boundStatement = prepared.bind();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                TypeCodec<Object> codec = codecRegistry.codecFor(variables.getType(i));
+                values[i] = codec.parse(insert.getValues().get(i));
+                boundStatement.set(i, values[i], codec);
+            }
+        } catch (InvalidTypeException | CodecNotFoundException exception) {
+            LOGGER.debug(format("Falling back to unprepared execution of '%s'", insert.getStatement()), exception);
+            return null;
+        }
+        return boundStatement;
+    }
+
+    /**
+     * Looks up the position of the partition key or primary key columns within the columns of the insert.
+     *
+     * @return the positions or null if the table or one of the key columns is unknown
+     */
+    private int[] keyIndexes(InsertStatement insert, boolean partitionKeyOnly) {
+        String table = InsertStatement.normalizeIdentifier(insert.getTable());
+        String tableKeyspace = bulkSession.getLoggedKeyspace() != null ? bulkSession.getLoggedKeyspace()
+                : keyspaceName;
+        if (table.contains(".")) {
+            tableKeyspace = table.substring(0, table.indexOf('.'));
+            table = table.substring(table.indexOf('.') + 1);
+        }
+        KeyspaceMetadata keyspace = cluster.getMetadata().getKeyspace(Metadata.quote(tableKeyspace));
+        TableMetadata tableMetadata = keyspace == null ? null : keyspace.getTable(Metadata.quote(table));
+        if (tableMetadata == null) {
+            return null;
+        }
+        List<ColumnMetadata> keyColumns = partitionKeyOnly ? tableMetadata.getPartitionKey()
+                : tableMetadata.getPrimaryKey();
+        List<String> columns = new ArrayList<>();
+        insert.getColumns().forEach(column -> columns.add(InsertStatement.normalizeIdentifier(column)));
+        int[] indexes = new int[keyColumns.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = columns.indexOf(keyColumns.get(i).getName());
+            if (indexes[i] < 0) {
+                return null;
+            }
+        }
+        return indexes;
+    }
+
+    private static List<Object> keyOf(Object[] values, int[] indexes) {
+        if (indexes == null) {
+            return null;
+        }
+        List<Object> key = new ArrayList<>(indexes.length);
+        for (int index : indexes) {
+            key.add(values[index]);
+        }
+        return key;
+    }
+
+    /**
+     * Sets how the inserts that are executed as prepared statements are sent.
+     *
+     * @param maxInFlight the maximum number of requests executed at the same time
+     * @param batchSize   the maximum number of rows of one partition that are sent as one batch
+     */
+    public void setInsertBatching(int maxInFlight, int batchSize) {
+        this.maxInFlight = maxInFlight;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Captures a sample of the executed statements and all slow statements, see {@link StatementTracer}. The tracer
+     * is closed together with this database.
+     *
+     * @param sampleRate          fraction of the statements that are executed with tracing, between 0 and 1
+     * @param slowThresholdMillis statements taking longer are captured, zero or less disables slow capture
+     * @param reportFile          the JSON lines file the reports are appended to, null to skip the file
+     * @param diagnosticsTable    whether the reports are written to the diagnostics table of the keyspace as well
+     */
+    public void enableTracing(double sampleRate, long slowThresholdMillis, File reportFile, boolean diagnosticsTable) {
+        this.tracer.close();
+        boolean writeTable = diagnosticsTable && StatementTracer.isEnabled(sampleRate, slowThresholdMillis);
+        if (writeTable) {
+            ensureTable(StatementTracer.TRACE_CF, StatementTracer.CREATE_TRACE_CF);
+        }
+        this.tracer = new StatementTracer(sampleRate, slowThresholdMillis, reportFile,
+                writeTable ? session : null);
+    }
+
+    /**
+     * Logs the progress of the data step of every migration at a fixed interval, see {@link MigrationProgress}.
+     * The reports stop when this database is closed.
+     *
+     * @param intervalMillis the time between two reports, zero or less disables the reports
+     */
+    public void enableProgress(long intervalMillis) {
+        this.progress.close();
+        this.progress = new MigrationProgress(intervalMillis);
+    }
+
+    /**
+     * Sets which failed statements are executed again, see {@link StatementRetry}. Applies to the statements of
+     * scripts, the rows loaded through the driver, backfills, exports and the migration log, but not to cqlsh.
+     *
+     * @param retry the retry policy
+     */
+    public void setRetry(StatementRetry retry) {
+        this.retry = notNull(retry, "retry");
+    }
+
+    /**
+     * Sets how the source tables of backfill migrations are read.
+     *
+     * @param parallelism the number of token ranges copied at the same time
+     * @param pageSize    the number of source rows fetched with one request
+     */
+    public void setBackfillScan(int parallelism, int pageSize) {
+        this.backfillParallelism = parallelism;
+        this.backfillPageSize = pageSize;
+    }
+
+    /**
+     * Sets how data folders with the directive <code>&#64;mode sstable</code> are loaded.
+     *
+     * @param workFolder    the folder the SSTables are written to before they are streamed
+     * @param loaderCommand the bulk loader command, e.g. <code>sstableloader</code>
+     * @param bufferSizeMb  the size of the rows a writer keeps in memory before it writes an SSTable
+     * @param writerThreads the number of data files written at the same time, unless the directives set it
+     */
+    public void setSSTableLoading(File workFolder, String loaderCommand, int bufferSizeMb, int writerThreads) {
+        this.sstableWorkFolder = notNull(workFolder, "workFolder");
+        this.sstableLoaderCommand = notNullOrEmpty(loaderCommand, "loaderCommand");
+        this.sstableBufferSizeMb = bufferSizeMb;
+        this.sstableWriterThreads = writerThreads;
+    }
+
+    /**
+     * Sets how the files of data folders with the directive <code>&#64;presort</code> are sorted, see
+     * {@link DataFileSorter}.
+     *
+     * @param spillFolder the folder sorted runs are written to while a file is sorted
+     * @param memoryBytes the memory used for records over all files sorted at the same time
+     * @param parallelism the number of files sorted at the same time
+     */
+    public void setPresort(File spillFolder, long memoryBytes, int parallelism) {
+        this.presortSpillFolder = notNull(spillFolder, "spillFolder");
+        this.presortMemoryBytes = memoryBytes;
+        this.presortParallelism = parallelism;
+    }
+
+    private void executeStatement(String statement, ExecutionDirectives directives) {
         if (!statement.isEmpty()) {
             SimpleStatement simpleStatement = new SimpleStatement(statement);
-            simpleStatement.setConsistencyLevel(ConsistencyLevel.QUORUM);
-            session.execute(simpleStatement);
+            simpleStatement.setConsistencyLevel(directives.getConsistencyLevel(ConsistencyLevel.QUORUM));
+            if (directives.isIdempotent()) {
+                simpleStatement.setIdempotent(true);
+            }
+            tracer.sample(simpleStatement);
+            long start = System.nanoTime();
+            AtomicInteger retries = new AtomicInteger();
+            ResultSet resultSet;
+            if (DML_PATTERN.matcher(statement).matches() || BATCH_PATTERN.matcher(statement).matches()) {
+                // the same timestamps as the prepared inserts, so the writes of a script apply in script order
+                simpleStatement.setDefaultTimestamp(AsyncStatementWriter.nextTimestamp());
+                resultSet = retry.execute(bulkSession, simpleStatement, statement, retries);
+            } else if (USE_PATTERN.matcher(statement).matches()) {
+                resultSet = retry.execute(session, simpleStatement, statement, retries);
+                if (bulkSession != session) {
+                    // the data changes following the statement go through the bulk session
+                    retry.execute(bulkSession, new SimpleStatement(statement), statement);
+                }
+            } else {
+                resultSet = retry.execute(session, simpleStatement, statement, retries);
+                // a schema change can alter the columns a prepared insert was prepared against
+                preparedInserts.clear();
+            }
+            tracer.record(simpleStatement, statement, start, resultSet, retries.get());
         }
     }
 
@@ -233,8 +1292,36 @@ public class Database implements Closeable {
      * @param dataSuccessful
      */
     private void logMigration(DbMigration migration, Boolean wasSuccessful, Boolean dataSuccessful) {
+        // an applied script whose data is not loaded yet has its data step pending until it succeeds
+        boolean dataPending = Boolean.TRUE.equals(wasSuccessful) && Boolean.FALSE.equals(dataSuccessful);
         BoundStatement boundStatement = logMigrationStatement.bind(wasSuccessful, migration.getVersion(), dataSuccessful,
-                migration.getScriptName(), migration.getMigrationScript(), new Date());
-        session.execute(boundStatement);
+                migration.getScriptName(), migration.getMigrationScript(), new Date(), dataPending);
+        retry.execute(session, boundStatement, "log of migration " + migration.getScriptName());
+    }
+
+    /**
+     * Temporarily replaces the read timeout of one or two clusters.
+     */
+    private static final class ReadTimeoutOverride implements AutoCloseable {
+        private final Cluster[] clusters;
+        private final int[] previousTimeouts;
+
+        private ReadTimeoutOverride(Integer timeoutMillis, Cluster... clusters) {
+            this.clusters = timeoutMillis == null ? new Cluster[0]
+                    : clusters[0] == clusters[1] ? new Cluster[]{clusters[0]} : clusters;
+            this.previousTimeouts = new int[this.clusters.length];
+            for (int i = 0; i < this.clusters.length; i++) {
+                SocketOptions socketOptions = this.clusters[i].getConfiguration().getSocketOptions();
+                previousTimeouts[i] = socketOptions.getReadTimeoutMillis();
+                socketOptions.setReadTimeoutMillis(timeoutMillis);
+            }
+        }
+
+        @Override
+        public void close() {
+            for (int i = 0; i < clusters.length; i++) {
+                clusters[i].getConfiguration().getSocketOptions().setReadTimeoutMillis(previousTimeouts[i]);
+            }
+        }
     }
 }
@@ -1,11 +1,12 @@
 package com.betalpha.migration;
 
-
+import static java.lang.String.format;
 import static org.cognitor.cassandra.migration.util.Ensure.notNull;
 import static org.cognitor.cassandra.migration.util.Ensure.notNullOrEmpty;
 
 /**
- * An object representing a database migration. Every script corresponds to one object of this class.
+ * An object representing a database migration. Every script and every {@link BackfillMigration} corresponds to one
+ * object of this class.
  *
  * @author Patrick Kranz
  */
@@ -13,6 +14,8 @@ class DbMigration {
     private final String migrationScript;
     private final String scriptName;
     private final int version;
+    private final ExecutionDirectives directives;
+    private final BackfillMigration backfill;
 
     /**
      * Creates a new instance based on the given information.
@@ -22,9 +25,39 @@ class DbMigration {
      * @param migrationScript the migration steps in cql. Must not be null.
      */
     public DbMigration(String scriptName, int version, String migrationScript) {
+        this(scriptName, version, migrationScript, ExecutionDirectives.NONE);
+    }
+
+    /**
+     * Creates a new instance based on the given information.
+     *
+     * @param scriptName      the name of the script without the version part. Must not be null.
+     * @param version         the schema version this migration will result to.
+     * @param migrationScript the migration steps in cql. Must not be null.
+     * @param directives      the execution directives declared in the header of the script. Must not be null.
+     */
+    public DbMigration(String scriptName, int version, String migrationScript, ExecutionDirectives directives) {
         this.migrationScript = notNull(migrationScript, "migrationScript");
         this.scriptName = notNullOrEmpty(scriptName, "scriptName");
         this.version = version;
+        this.directives = notNull(directives, "directives");
+        this.backfill = null;
+    }
+
+    /**
+     * Creates a new instance for a backfill. The description of the backfill takes the place of the script.
+     *
+     * @param scriptName the name of the backfill class without the version part. Must not be null.
+     * @param version    the schema version this migration will result to.
+     * @param backfill   the backfill to execute. Must not be null.
+     */
+    public DbMigration(String scriptName, int version, BackfillMigration backfill) {
+        this.backfill = notNull(backfill, "backfill");
+        this.scriptName = notNullOrEmpty(scriptName, "scriptName");
+        this.version = version;
+        this.migrationScript = format("backfill %s from %s by %s", backfill.getTargetTable(),
+                backfill.getSourceTable(), backfill.getClass().getName());
+        this.directives = ExecutionDirectives.NONE;
     }
 
     public String getMigrationScript() {
@@ -38,4 +71,17 @@ class DbMigration {
     public int getVersion() {
         return version;
     }
+
+    public ExecutionDirectives getDirectives() {
+        return directives;
+    }
+
+    /**
+     * Returns the backfill of this migration.
+     *
+     * @return the backfill or null if this migration is a script
+     */
+    public BackfillMigration getBackfill() {
+        return backfill;
+    }
 }
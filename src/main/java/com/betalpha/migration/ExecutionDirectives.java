@@ -0,0 +1,230 @@
+package com.betalpha.migration;
+
+import com.datastax.driver.core.ConsistencyLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.lang.String.format;
+
+/**
+ * Execution settings a migration script or a data folder declares for itself. They are written as comments in the
+ * header of a script, i.e. before the first statement, or in the <code>DIRECTIVES_FILE</code> of a data folder:
+ * <pre>
+ * -- &#64;consistency LOCAL_ONE
+ * -- &#64;parallel 32
+ * -- &#64;timeout 120s
+ * -- &#64;idempotent
+ * -- &#64;mode sstable
+ * -- &#64;presort
+ * </pre>
+ * Settings that are not declared keep the defaults of the executor, unknown directives are ignored with a warning.
+ * The mode and presort only apply to data folders.
+ */
+public class ExecutionDirectives {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExecutionDirectives.class);
+
+    /**
+     * Directives without any setting.
+     */
+    public static final ExecutionDirectives NONE = new ExecutionDirectives(null, null, null, false, null, false);
+
+    /**
+     * The file in a data folder that holds the directives of the folder. It is not loaded as data.
+     */
+    public static final String DIRECTIVES_FILE = "_directives";
+
+    private static final Pattern DIRECTIVE_PATTERN = Pattern.compile("^\\s*(?:--|//)\\s*@(\\w+)(?:\\s+(\\S+))?\\s*$");
+    private static final Pattern TIMEOUT_PATTERN = Pattern.compile("^(\\d+)(ms|s|m)?$");
+    private static final String INVALID_DIRECTIVE_MSG = "Invalid directive '%s' in %s";
+
+    private final ConsistencyLevel consistencyLevel;
+    private final Integer parallelism;
+    private final Integer timeoutMillis;
+    private final boolean idempotent;
+    private final DataMode dataMode;
+    private final boolean presort;
+
+    /**
+     * How the files of a data folder are loaded.
+     */
+    public enum DataMode {
+        /**
+         * The rows are written through cql, with cqlsh or the driver.
+         */
+        CQL,
+        /**
+         * SSTables are written locally and streamed into the cluster, see <code>SSTableDataLoader</code>, which is only
+         * part of builds with the Maven profile <code>sstable</code>.
+         */
+        SSTABLE
+    }
+
+    private ExecutionDirectives(ConsistencyLevel consistencyLevel, Integer parallelism, Integer timeoutMillis,
+                                boolean idempotent, DataMode dataMode, boolean presort) {
+        this.consistencyLevel = consistencyLevel;
+        this.parallelism = parallelism;
+        this.timeoutMillis = timeoutMillis;
+        this.idempotent = idempotent;
+        this.dataMode = dataMode;
+        this.presort = presort;
+    }
+
+    /**
+     * Parses the directives in the header of a script. Parsing stops at the first line that is neither empty nor a
+     * comment.
+     *
+     * @param lines  the lines of the script or directives file
+     * @param source the name of the script or folder, used in error messages
+     * @return the directives, never null
+     * @throws MigrationException if the value of a directive is invalid, unknown directives are ignored
+     */
+    public static ExecutionDirectives parse(List<String> lines, String source) {
+        ConsistencyLevel consistencyLevel = null;
+        Integer parallelism = null;
+        Integer timeoutMillis = null;
+        boolean idempotent = false;
+        DataMode dataMode = null;
+        boolean presort = false;
+        for (String line : lines) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            if (!trimmed.startsWith("--") && !trimmed.startsWith("//")) {
+                break;
+            }
+            Matcher matcher = DIRECTIVE_PATTERN.matcher(trimmed);
+            if (!matcher.matches()) {
+                continue;
+            }
+            String value = matcher.group(2);
+            try {
+                switch (matcher.group(1).toLowerCase(Locale.ROOT)) {
+                    case "consistency":
+                        consistencyLevel = ConsistencyLevel.valueOf(required(value).toUpperCase(Locale.ROOT));
+                        break;
+                    case "parallel":
+                        parallelism = positive(Integer.parseInt(required(value)));
+                        break;
+                    case "timeout":
+                        timeoutMillis = parseTimeout(required(value));
+                        break;
+                    case "idempotent":
+                        idempotent = value == null || Boolean.parseBoolean(value);
+                        break;
+                    case "mode":
+                        dataMode = DataMode.valueOf(required(value).toUpperCase(Locale.ROOT));
+                        break;
+                    case "presort":
+                        presort = value == null || Boolean.parseBoolean(value);
+                        break;
+                    default:
+                        // plain comments may start with an @ as well, e.g. an @author tag
+                        LOGGER.warn("Ignoring unknown directive '{}' in {}.", trimmed, source);
+                }
+            } catch (IllegalArgumentException exception) {
+                throw new MigrationException(format(INVALID_DIRECTIVE_MSG, trimmed, source), exception, source);
+            }
+        }
+        return new ExecutionDirectives(consistencyLevel, parallelism, timeoutMillis, idempotent, dataMode, presort);
+    }
+
+    private static String required(String value) {
+        if (value == null) {
+            throw new IllegalArgumentException("missing value");
+        }
+        return value;
+    }
+
+    private static int positive(int value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException("value must be positive");
+        }
+        return value;
+    }
+
+    private static int parseTimeout(String value) {
+        Matcher matcher = TIMEOUT_PATTERN.matcher(value.toLowerCase(Locale.ROOT));
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("timeout must look like 500ms, 120s or 2m");
+        }
+        long amount = Long.parseLong(matcher.group(1));
+        String unit = matcher.group(2) == null ? "s" : matcher.group(2);
+        long millis = "ms".equals(unit) ? amount : "s".equals(unit) ? amount * 1000 : amount * 60000;
+        return positive((int) Math.min(Integer.MAX_VALUE, millis));
+    }
+
+    /**
+     * Combines these directives with more specific ones, e.g. the directives of a script with the ones of its data
+     * folder. Settings declared in <code>other</code> win.
+     *
+     * @param other the more specific directives
+     * @return the combined directives
+     */
+    public ExecutionDirectives overriddenBy(ExecutionDirectives other) {
+        return new ExecutionDirectives(
+                other.consistencyLevel != null ? other.consistencyLevel : consistencyLevel,
+                other.parallelism != null ? other.parallelism : parallelism,
+                other.timeoutMillis != null ? other.timeoutMillis : timeoutMillis,
+                other.idempotent || idempotent,
+                other.dataMode != null ? other.dataMode : dataMode,
+                other.presort || presort);
+    }
+
+    public ConsistencyLevel getConsistencyLevel(ConsistencyLevel defaultLevel) {
+        return consistencyLevel != null ? consistencyLevel : defaultLevel;
+    }
+
+    public int getParallelism(int defaultParallelism) {
+        return parallelism != null ? parallelism : defaultParallelism;
+    }
+
+    /**
+     * Returns the declared timeout.
+     *
+     * @return the timeout in milliseconds or null if none was declared
+     */
+    public Integer getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Indicates whether the statements may be applied more than once without changing the result, which allows the
+     * driver to execute them speculatively.
+     *
+     * @return true if the script is declared idempotent
+     */
+    public boolean isIdempotent() {
+        return idempotent;
+    }
+
+    /**
+     * Returns how the files of a data folder are loaded.
+     *
+     * @return the declared mode, {@link DataMode#CQL} if none was declared
+     */
+    public DataMode getDataMode() {
+        return dataMode != null ? dataMode : DataMode.CQL;
+    }
+
+    /**
+     * Indicates whether the files of a data folder are sorted by the token of their partition key before they are
+     * loaded, see {@link DataFileSorter}.
+     *
+     * @return true if presorting is declared
+     */
+    public boolean isPresort() {
+        return presort;
+    }
+
+    @Override
+    public String toString() {
+        return format("consistency=%s, parallel=%s, timeout=%sms, idempotent=%s, mode=%s, presort=%s",
+                consistencyLevel, parallelism, timeoutMillis, idempotent, getDataMode(), presort);
+    }
+}
@@ -0,0 +1,202 @@
+package com.betalpha.migration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * A plain <code>INSERT INTO table (columns) VALUES (literals)</code> statement taken apart into its table, columns
+ * and literal values. Consecutive inserts with the same {@link #getShape() shape} can be executed through one
+ * prepared statement by binding the literals instead of sending every statement as text.
+ * <p>
+ * Statements with additional clauses like <code>IF NOT EXISTS</code> or <code>USING TTL</code>, with bind markers
+ * or with function calls as values are not recognized and keep being executed as they are.
+ */
+class InsertStatement {
+    private static final Pattern INSERT_PATTERN = Pattern.compile(
+            "^\\s*insert\\s+into\\s+([\\w.\"]+)\\s*\\(([^)]*)\\)\\s*values\\s*\\((.*)\\)\\s*$",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /**
+     * Values that are function calls (e.g. <code>now()</code>) or bind markers cannot be bound.
+     */
+    private static final Pattern NOT_A_LITERAL_PATTERN = Pattern.compile("^([A-Za-z_][\\w.]*\\s*\\(.*|\\?|:.*)$",
+            Pattern.DOTALL);
+
+    private final String statement;
+    private final String table;
+    private final List<String> columns;
+    private final List<String> values;
+    private final String shape;
+
+    private InsertStatement(String statement, String table, List<String> columns, List<String> values) {
+        this.statement = statement;
+        this.table = table;
+        this.columns = Collections.unmodifiableList(columns);
+        this.values = Collections.unmodifiableList(values);
+        this.shape = normalizeIdentifier(table) + columns.stream()
+                .map(InsertStatement::normalizeIdentifier)
+                .collect(Collectors.joining(",", "(", ")"));
+    }
+
+    /**
+     * Parses the given statement.
+     *
+     * @param statement a single cql statement without the trailing delimiter
+     * @return the parsed insert or null if the statement is not a plain insert with literal values
+     */
+    static InsertStatement parse(String statement) {
+        Matcher matcher = INSERT_PATTERN.matcher(statement);
+        if (!matcher.matches()) {
+            return null;
+        }
+        List<String> columns = new ArrayList<>();
+        for (String column : matcher.group(2).split(",")) {
+            if (column.trim().isEmpty()) {
+                return null;
+            }
+            columns.add(column.trim());
+        }
+        List<String> values = splitLiterals(matcher.group(3));
+        if (values == null || values.size() != columns.size()) {
+            return null;
+        }
+        for (String value : values) {
+            if (value.isEmpty() || NOT_A_LITERAL_PATTERN.matcher(value).matches()) {
+                return null;
+            }
+        }
+        return new InsertStatement(statement, matcher.group(1), columns, values);
+    }
+
+    /**
+     * Splits a comma separated list of cql literals. Commas inside string literals, dollar quoted strings and
+     * collection or tuple literals do not split.
+     *
+     * @param literals the text between the parentheses of the <code>VALUES</code> clause
+     * @return the trimmed literals or null if quotes or brackets are unbalanced
+     */
+    private static List<String> splitLiterals(String literals) {
+        List<String> result = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        int i = 0;
+        while (i < literals.length()) {
+            char current = literals.charAt(i);
+            if (current == '\'') {
+                i = skipQuoted(literals, i);
+                if (i < 0) {
+                    return null;
+                }
+                continue;
+            }
+            if (current == '$' && literals.startsWith("$$", i)) {
+                int end = literals.indexOf("$$", i + 2);
+                if (end < 0) {
+                    return null;
+                }
+                i = end + 2;
+                continue;
+            }
+            if (current == '(' || current == '[' || current == '{') {
+                depth++;
+            } else if (current == ')' || current == ']' || current == '}') {
+                depth--;
+                if (depth < 0) {
+                    return null;
+                }
+            } else if (current == ',' && depth == 0) {
+                result.add(literals.substring(start, i).trim());
+                start = i + 1;
+            }
+            i++;
+        }
+        if (depth != 0) {
+            return null;
+        }
+        result.add(literals.substring(start).trim());
+        return result;
+    }
+
+    /**
+     * Skips a single quoted string literal, taking doubled quotes as escaped quotes.
+     *
+     * @return the index after the closing quote or -1 if the literal is not terminated
+     */
+    private static int skipQuoted(String text, int openingQuote) {
+        int i = openingQuote + 1;
+        while (i < text.length()) {
+            if (text.charAt(i) == '\'') {
+                if (i + 1 < text.length() && text.charAt(i + 1) == '\'') {
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * Converts a cql identifier into the form Cassandra stores it in: quoted identifiers keep their case, all other
+     * identifiers are lower cased.
+     */
+    static String normalizeIdentifier(String identifier) {
+        StringBuilder builder = new StringBuilder(identifier.length());
+        for (String part : identifier.trim().split("\\.")) {
+            if (builder.length() > 0) {
+                builder.append('.');
+            }
+            if (part.length() > 1 && part.startsWith("\"") && part.endsWith("\"")) {
+                builder.append(part.substring(1, part.length() - 1).replace("\"\"", "\""));
+            } else {
+                builder.append(part.toLowerCase());
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Builds the prepared form of this insert with a bind marker for every column.
+     *
+     * @return the insert statement with bind markers
+     */
+    String toPreparedQuery() {
+        StringBuilder builder = new StringBuilder("INSERT INTO ").append(table).append(" (")
+                .append(String.join(", ", columns)).append(") VALUES (");
+        for (int i = 0; i < columns.size(); i++) {
+            builder.append(i == 0 ? "?" : ", ?");
+        }
+        return builder.append(')').toString();
+    }
+
+    String getStatement() {
+        return statement;
+    }
+
+    String getTable() {
+        return table;
+    }
+
+    List<String> getColumns() {
+        return columns;
+    }
+
+    List<String> getValues() {
+        return values;
+    }
+
+    /**
+     * Two inserts have the same shape if they write the same columns of the same table and can therefore share one
+     * prepared statement.
+     *
+     * @return the normalized table and column names
+     */
+    String getShape() {
+        return shape;
+    }
+}
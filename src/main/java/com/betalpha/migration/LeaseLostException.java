@@ -0,0 +1,12 @@
+package com.betalpha.migration;
+
+/**
+ * Indicates that the migration stopped because this instance no longer holds the migration lease. Another instance
+ * may be migrating the keyspace already, so nothing is logged to the migration table for the interrupted step.
+ */
+public class LeaseLostException extends MigrationException {
+
+    public LeaseLostException(String message) {
+        super(message, null);
+    }
+}
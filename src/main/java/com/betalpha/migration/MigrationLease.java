@@ -0,0 +1,209 @@
+package com.betalpha.migration;
+
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.betalpha.migration.util.Ensure.notNull;
+import static com.betalpha.migration.util.Ensure.notNullOrEmpty;
+import static java.lang.String.format;
+
+/**
+ * A cluster wide lease that makes sure only one instance migrates a keyspace at a time. The lease is a row in the
+ * lock table that is written with a lightweight transaction and expires by TTL, so a crashed leader frees the lease
+ * on its own. While the lease is held a heartbeat renews it every third of the TTL.
+ * <p>
+ * A renewal that fails with an error is retried with the next heartbeat, but the lease counts as lost once the TTL
+ * passed since the last write that took or renewed it, because another instance may have taken it by then.
+ */
+public class MigrationLease implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MigrationLease.class);
+
+    private static final String ACQUIRE_LEASE = "insert into %s (name, owner, acquired_at) values (?, ?, ?)"
+            + " if not exists using ttl ?";
+    private static final String RENEW_LEASE = "update %s using ttl ? set owner = ?, acquired_at = ?"
+            + " where name = ? if owner = ?";
+    private static final String RELEASE_LEASE = "delete from %s where name = ? if owner = ?";
+    private static final String OWNER_QUERY = "select owner from %s where name = ?";
+
+    private final Session session;
+    private final String name;
+    private final String owner;
+    private final int ttlSeconds;
+    private final PreparedStatement acquireStatement;
+    private final PreparedStatement renewStatement;
+    private final PreparedStatement releaseStatement;
+    private final PreparedStatement ownerStatement;
+    private volatile boolean held;
+    private volatile long lastWriteMillis;
+    private volatile ScheduledExecutorService heartbeat;
+
+    /**
+     * Creates a new lease. Nothing is written until {@link #tryAcquire()} is called.
+     *
+     * @param session    the session used for the lease statements
+     * @param lockTable  the table holding the lease rows
+     * @param name       the name of the lease, usually the keyspace that is migrated
+     * @param ttlSeconds the time after which the lease expires unless it is renewed
+     */
+    MigrationLease(Session session, String lockTable, String name, int ttlSeconds) {
+        this.session = notNull(session, "session");
+        this.name = notNullOrEmpty(name, "name");
+        if (ttlSeconds < 3) {
+            throw new IllegalArgumentException("Argument ttlSeconds must be at least 3.");
+        }
+        this.ttlSeconds = ttlSeconds;
+        this.owner = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+        this.acquireStatement = prepare(format(ACQUIRE_LEASE, lockTable));
+        this.renewStatement = prepare(format(RENEW_LEASE, lockTable));
+        this.releaseStatement = prepare(format(RELEASE_LEASE, lockTable));
+        this.ownerStatement = prepare(format(OWNER_QUERY, lockTable));
+    }
+
+    private PreparedStatement prepare(String query) {
+        return session.prepare(query).setConsistencyLevel(ConsistencyLevel.QUORUM)
+                .setSerialConsistencyLevel(ConsistencyLevel.SERIAL);
+    }
+
+    /**
+     * Tries to take the lease once. On success the heartbeat is started.
+     *
+     * @return true if this instance is now the leader
+     */
+    public synchronized boolean tryAcquire() {
+        if (held) {
+            return true;
+        }
+        // taken before the request, the lease expires at the latest one TTL after this time
+        long writeMillis = System.currentTimeMillis();
+        ResultSet resultSet = session.execute(acquireStatement.bind(name, owner, new Date(), ttlSeconds));
+        if (!resultSet.wasApplied()) {
+            return false;
+        }
+        lastWriteMillis = writeMillis;
+        held = true;
+        startHeartbeat();
+        LOGGER.info("Acquired migration lease {} as {}.", name, owner);
+        return true;
+    }
+
+    /**
+     * Blocks until the lease is acquired. Between two attempts the caller waits with a jittered exponential backoff.
+     *
+     * @param maxWaitMillis        the time after which waiting is given up
+     * @param initialBackoffMillis the first pause between two attempts
+     * @param maxBackoffMillis     the upper bound of the pause between two attempts
+     * @param onWait               called before every pause, e.g. to log the progress of the leader
+     * @throws MigrationException if the lease could not be acquired in time
+     */
+    public void acquire(long maxWaitMillis, long initialBackoffMillis, long maxBackoffMillis, Runnable onWait) {
+        long deadline = System.currentTimeMillis() + maxWaitMillis;
+        long backoff = Math.max(1, initialBackoffMillis);
+        while (!tryAcquire()) {
+            if (System.currentTimeMillis() >= deadline) {
+                throw new MigrationException(format("Gave up waiting for migration lease %s held by %s",
+                        name, currentOwner()), null);
+            }
+            onWait.run();
+            long pause = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+            try {
+                Thread.sleep(Math.min(pause, Math.max(0, deadline - System.currentTimeMillis())));
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new MigrationException("Interrupted while waiting for migration lease " + name, exception);
+            }
+            backoff = Math.min(backoff * 2, maxBackoffMillis);
+        }
+    }
+
+    /**
+     * Indicates whether this instance still holds the lease. It is lost as soon as a renewal finds another owner or
+     * the TTL passed since the lease was last taken or renewed.
+     *
+     * @return true if the lease is held
+     */
+    public boolean isHeld() {
+        return held && System.currentTimeMillis() - lastWriteMillis < TimeUnit.SECONDS.toMillis(ttlSeconds);
+    }
+
+    /**
+     * Returns the owner of the lease as stored in the lock table.
+     *
+     * @return the current owner or null if the lease is free
+     */
+    public String currentOwner() {
+        Row row = session.execute(ownerStatement.bind(name)).one();
+        return row == null ? null : row.getString(0);
+    }
+
+    private void startHeartbeat() {
+        heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "migration-lease-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = TimeUnit.SECONDS.toMillis(ttlSeconds) / 3;
+        heartbeat.scheduleAtFixedRate(this::renew, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void renew() {
+        if (!held) {
+            return;
+        }
+        try {
+            long writeMillis = System.currentTimeMillis();
+            ResultSet resultSet = session.execute(renewStatement.bind(ttlSeconds, owner, new Date(), name, owner));
+            if (resultSet.wasApplied()) {
+                lastWriteMillis = writeMillis;
+            } else {
+                held = false;
+                LOGGER.error("Lost migration lease {}, it is now held by {}.", name, currentOwner());
+                // release() may have cleared the heartbeat in the meantime
+                ScheduledExecutorService current = heartbeat;
+                if (current != null) {
+                    current.shutdown();
+                }
+            }
+        } catch (Exception exception) {
+            if (isHeld()) {
+                LOGGER.warn("Failed to renew migration lease {}, retrying with the next heartbeat.", name, exception);
+            } else {
+                LOGGER.error("Failed to renew migration lease {} within its TTL of {} s, it may be held by another"
+                        + " instance now.", name, ttlSeconds, exception);
+            }
+        }
+    }
+
+    /**
+     * Stops the heartbeat and frees the lease so waiting instances can continue.
+     */
+    public synchronized void release() {
+        if (heartbeat != null) {
+            heartbeat.shutdownNow();
+            heartbeat = null;
+        }
+        if (held) {
+            held = false;
+            session.execute(releaseStatement.bind(name, owner));
+            LOGGER.info("Released migration lease {}.", name);
+        }
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+}
@@ -0,0 +1,369 @@
+package com.betalpha.migration;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * Tracks the progress of the data step of a migration and logs it as one JSON line every interval while the step
+ * runs: the version and script, the phase, the files being processed, files, rows and bytes done against the total,
+ * the throughput since the last report, the requests in flight and the estimated time until the phase is done.
+ * <p>
+ * Bytes are counted on the data files as they are stored, so compressed files count with their compressed size. The
+ * estimate is based on the bytes done in the current phase. While no bytes are known, it is based on the rows,
+ * assuming the remaining files hold as many rows as the finished ones, and it is left out until a file is finished.
+ * <p>
+ * Most data is loaded in the single phase {@link #LOADING}. Data loaded as SSTables is first written locally in
+ * the phase {@link #WRITING} and then streamed into the cluster in the phase {@link #STREAMING}, which counts the
+ * files and bytes again.
+ */
+public class MigrationProgress implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MigrationProgress.class);
+
+    /**
+     * Progress that is neither tracked nor logged. It keeps no state, so it can be shared by concurrent loaders.
+     */
+    public static final MigrationProgress DISABLED = new Disabled();
+
+    /**
+     * The phase of data that is sent to the cluster while it is read.
+     */
+    public static final String LOADING = "loading";
+
+    /**
+     * The phase of data that is written as SSTables on the local disk.
+     */
+    public static final String WRITING = "writing";
+
+    /**
+     * The phase of SSTables that are streamed into the cluster.
+     */
+    public static final String STREAMING = "streaming";
+
+    private final ScheduledExecutorService scheduler;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Set<String> currentFiles = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger filesDone = new AtomicInteger();
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong rowsOfFinishedFiles = new AtomicLong();
+    private final Map<String, Long> fileSizes = new ConcurrentHashMap<>();
+    private volatile IntSupplier inFlight;
+    private volatile String phase;
+    private volatile String scriptName;
+    private volatile int version;
+    private volatile int filesTotal;
+    private volatile long bytesTotal;
+    private volatile long startMillis;
+    private volatile long phaseStartMillis;
+    private volatile boolean running;
+    private long lastReportMillis;
+    private long lastReportRows;
+    private long lastReportBytes;
+
+    /**
+     * Creates a new progress tracker.
+     *
+     * @param intervalMillis the time between two reports, zero or less disables the reports
+     */
+    public MigrationProgress(long intervalMillis) {
+        if (intervalMillis <= 0) {
+            this.scheduler = null;
+            return;
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "migration-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::report, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts tracking the data step of a migration.
+     *
+     * @param scriptName the name of the script the data belongs to
+     * @param version    the version of the migration
+     * @param fileSizes  the size of every data file by file name, negative if unknown
+     */
+    public void start(String scriptName, int version, Map<String, Long> fileSizes) {
+        long total = 0;
+        for (long size : fileSizes.values()) {
+            if (size < 0) {
+                total = -1;
+                break;
+            }
+            total += size;
+        }
+        synchronized (this) {
+            this.scriptName = scriptName;
+            this.version = version;
+            this.filesTotal = fileSizes.size();
+            this.bytesTotal = total;
+            this.fileSizes.clear();
+            this.fileSizes.putAll(fileSizes);
+            rows.set(0);
+            inFlight = null;
+            startMillis = System.currentTimeMillis();
+            lastReportRows = 0;
+            startPhase(LOADING);
+            running = true;
+        }
+    }
+
+    /**
+     * Starts the next phase of the data step. Files and bytes are counted from zero again, rows keep counting.
+     *
+     * @param phase the phase, e.g. {@link #STREAMING}
+     */
+    public synchronized void startPhase(String phase) {
+        this.phase = phase;
+        currentFiles.clear();
+        filesDone.set(0);
+        bytes.set(0);
+        rowsOfFinishedFiles.set(0);
+        phaseStartMillis = System.currentTimeMillis();
+        lastReportMillis = phaseStartMillis;
+        lastReportBytes = 0;
+    }
+
+    /**
+     * Returns the size of a data file as it was given to {@link #start(String, int, Map)}.
+     *
+     * @param fileName the name of the data file
+     * @return the size in bytes, negative if unknown
+     */
+    public long getFileSize(String fileName) {
+        Long size = fileSizes.get(fileName);
+        return size != null ? size : -1;
+    }
+
+    /**
+     * Marks a file as being loaded.
+     *
+     * @param fileName the name of the data file
+     */
+    public void startFile(String fileName) {
+        currentFiles.add(fileName);
+    }
+
+    /**
+     * Marks a file as loaded.
+     *
+     * @param fileName the name of the data file
+     * @param size     the bytes of the file that were not counted through {@link #track(InputStream)} yet, zero if
+     *                 the file was read through a tracked stream
+     */
+    public void finishFile(String fileName, long size) {
+        currentFiles.remove(fileName);
+        bytes.addAndGet(Math.max(0, size));
+        // with files processed in parallel this includes rows of unfinished files, good enough for an estimate
+        rowsOfFinishedFiles.set(rows.get());
+        filesDone.incrementAndGet();
+    }
+
+    /**
+     * Wraps a data file, so the bytes read from it are counted.
+     *
+     * @param input the data file as stored, before it is uncompressed
+     * @return the counting stream
+     */
+    public InputStream track(InputStream input) {
+        return new FilterInputStream(input) {
+            @Override
+            public int read() throws IOException {
+                int read = super.read();
+                if (read >= 0) {
+                    bytes.incrementAndGet();
+                }
+                return read;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read > 0) {
+                    bytes.addAndGet(read);
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long length) throws IOException {
+                long skipped = super.skip(length);
+                bytes.addAndGet(Math.max(0, skipped));
+                return skipped;
+            }
+        };
+    }
+
+    /**
+     * Counts loaded rows.
+     *
+     * @param count the number of rows
+     */
+    public void addRows(long count) {
+        rows.addAndGet(count);
+    }
+
+    /**
+     * Sets where the number of requests in flight is read from.
+     *
+     * @param inFlight the current number of requests in flight, null if nothing is sent through the driver
+     */
+    public void trackInFlight(IntSupplier inFlight) {
+        this.inFlight = inFlight;
+    }
+
+    /**
+     * Stops tracking the data step and logs the final report.
+     */
+    public void finish() {
+        if (running) {
+            report();
+            running = false;
+            inFlight = null;
+        }
+    }
+
+    /**
+     * Returns the current state of the data step, as it is logged.
+     *
+     * @return the values by name
+     */
+    public synchronized Map<String, Object> snapshot() {
+        long now = System.currentTimeMillis();
+        long currentRows = rows.get();
+        long currentBytes = bytes.get();
+        double intervalSeconds = Math.max(1, now - lastReportMillis) / 1000.0;
+        double elapsedSeconds = Math.max(1, now - startMillis) / 1000.0;
+        double phaseSeconds = Math.max(1, now - phaseStartMillis) / 1000.0;
+        Double done = fractionDone(currentRows, currentBytes);
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("script", scriptName);
+        snapshot.put("version", version);
+        snapshot.put("phase", phase);
+        snapshot.put("currentFiles", new ArrayList<>(currentFiles));
+        snapshot.put("filesDone", filesDone.get());
+        snapshot.put("filesTotal", filesTotal);
+        snapshot.put("rows", currentRows);
+        snapshot.put("bytes", currentBytes);
+        snapshot.put("bytesTotal", bytesTotal >= 0 ? bytesTotal : null);
+        snapshot.put("percent", done != null ? Math.round(done * 1000) / 10.0 : null);
+        snapshot.put("rowsPerSecond", Math.round((currentRows - lastReportRows) / intervalSeconds));
+        snapshot.put("bytesPerSecond", Math.round((currentBytes - lastReportBytes) / intervalSeconds));
+        IntSupplier currentInFlight = inFlight;
+        snapshot.put("inFlight", currentInFlight != null ? currentInFlight.getAsInt() : null);
+        snapshot.put("elapsedSeconds", Math.round(elapsedSeconds));
+        snapshot.put("etaSeconds", done != null && done > 0 ? Math.round((1 - done) * phaseSeconds / done) : null);
+        lastReportMillis = now;
+        lastReportRows = currentRows;
+        lastReportBytes = currentBytes;
+        return snapshot;
+    }
+
+    /**
+     * Returns the part of the current phase that is done, between zero and one, or null if it cannot be estimated.
+     */
+    private Double fractionDone(long currentRows, long currentBytes) {
+        if (bytesTotal > 0 && currentBytes > 0) {
+            return Math.min(1, (double) currentBytes / bytesTotal);
+        }
+        int files = filesDone.get();
+        if (files == 0 || filesTotal == 0) {
+            return null;
+        }
+        long finishedRows = rowsOfFinishedFiles.get();
+        if (!STREAMING.equals(phase) && finishedRows > 0) {
+            double rowsTotal = (double) finishedRows * filesTotal / files;
+            return Math.min(1, currentRows / Math.max(currentRows, rowsTotal));
+        }
+        return Math.min(1, (double) files / filesTotal);
+    }
+
+    private void report() {
+        if (!running || scheduler == null) {
+            return;
+        }
+        try {
+            LOGGER.info("Migration progress: {}", objectMapper.writeValueAsString(snapshot()));
+        } catch (JsonProcessingException | RuntimeException exception) {
+            LOGGER.warn("Unable to report the migration progress.", exception);
+        }
+    }
+
+    /**
+     * Stops the reports.
+     */
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Progress that ignores all changes.
+     */
+    private static final class Disabled extends MigrationProgress {
+        private Disabled() {
+            super(0);
+        }
+
+        @Override
+        public void start(String scriptName, int version, Map<String, Long> fileSizes) {
+        }
+
+        @Override
+        public void startPhase(String phase) {
+        }
+
+        @Override
+        public void startFile(String fileName) {
+        }
+
+        @Override
+        public void finishFile(String fileName, long size) {
+        }
+
+        @Override
+        public InputStream track(InputStream input) {
+            return input;
+        }
+
+        @Override
+        public void addRows(long count) {
+        }
+
+        @Override
+        public void trackInFlight(IntSupplier inFlight) {
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public Map<String, Object> snapshot() {
+            return Collections.emptyMap();
+        }
+    }
+}
@@ -3,8 +3,7 @@ package com.betalpha.migration;
 import com.google.common.collect.Lists;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
-import org.cognitor.cassandra.migration.resolver.ClassPathLocationScanner;
-import org.cognitor.cassandra.migration.resolver.FileSystemLocationScanner;
+import com.betalpha.migration.resolver.ClassPathLocationScanner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
@@ -17,7 +16,9 @@ import javax.annotation.Resource;
 import java.io.*;
 import java.net.URL;
 import java.util.*;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import static java.lang.Integer.parseInt;
 import static java.lang.String.format;
@@ -34,6 +35,10 @@ import static org.cognitor.cassandra.migration.util.Ensure.notNullOrEmpty;
  * <p>
  * Within a script every line starting with <code>COMMENT_PREFIX</code> will be ignored.
  * </p>
+ * <p>
+ * Besides the scripts the repository holds the {@link BackfillMigration} classes found in
+ * <code>BACKFILL_PACKAGE</code>. They are versioned like the scripts but must not share a version with one.
+ * </p>
  *
  * @author Patrick Kranz
  */
@@ -46,6 +51,22 @@ public class MigrationRepository {
      */
     public static final String DEFAULT_SCRIPT_PATH = "cassandra/migration";
     public static final String DEFAULT_DATA_PATH = "cassandra/data";
+    public static final String DEFAULT_BASELINE_PATH = "cassandra/baseline";
+
+    /**
+     * The name part of generated baseline scripts.
+     */
+    public static final String BASELINE_NAME = "baseline";
+    /**
+     * The classpath location of the backfill migration classes.
+     */
+    public static final String BACKFILL_PACKAGE = "com/betalpha/migration/backfill";
+
+    /**
+     * Pattern matching the class files of backfill migrations, e.g. <code>V12_StockYieldByDate.class</code>.
+     */
+    private static final Pattern BACKFILL_CLASS_PATTERN = Pattern.compile("^V(\\d+)_(\\w+)\\.class$");
+
     /**
      * The script extension for migrations. Every file that not ends with this extension will not be considered.
      */
@@ -71,14 +92,19 @@ public class MigrationRepository {
     private static final String EXTRACT_VERSION_ERROR_MSG = "Error for script %s. Unable to extract version.";
     private static final String SCANNING_SCRIPT_FOLDER_ERROR_MSG = "Error while scanning script folder for new scripts.";
     private static final String READING_SCRIPT_ERROR_MSG = "Error while reading script %s";
+    private static final String LOADING_BACKFILL_ERROR_MSG = "Error while loading backfill migration %s";
+    private static final String DUPLICATE_VERSION_ERROR_MSG = "Backfill migration %s has the same version as a script";
 
     private String scriptPath;
     private Pattern commentPattern;
     private List<Script> migrationScripts;
+    private List<DbMigration> backfillMigrations;
     @Value("${script.file.path}")
     private String serverScriptPath;
     @Value("${data.file.path}")
     private String serverDataPath;
+    @Value("${baseline.file.path:/app/cassandra/baseline}")
+    private String serverBaselinePath;
 
 
     @Resource
@@ -105,7 +131,8 @@ public class MigrationRepository {
         this.commentPattern = Pattern.compile(SINGLE_LINE_COMMENT_PATTERN);
         try {
             log.info("scriptPath=" + scriptPath);
-            migrationScripts = scanForScripts(scriptPath);
+            migrationScripts = scanForScripts(scriptPath, DEFAULT_SCRIPT_PATH);
+            backfillMigrations = scanForBackfills();
         } catch (IOException exception) {
             throw new MigrationException(SCANNING_SCRIPT_FOLDER_ERROR_MSG, exception);
         }
@@ -118,7 +145,8 @@ public class MigrationRepository {
         this.commentPattern = Pattern.compile(SINGLE_LINE_COMMENT_PATTERN);
         try {
             log.info("scriptPath=" + serverScriptPath);
-            migrationScripts = scanForScripts(serverScriptPath);
+            migrationScripts = scanForScripts(serverScriptPath, DEFAULT_SCRIPT_PATH);
+            backfillMigrations = scanForBackfills();
         } catch (IOException exception) {
             throw new MigrationException(SCANNING_SCRIPT_FOLDER_ERROR_MSG, exception);
         }
@@ -151,19 +179,116 @@ public class MigrationRepository {
      * @return the latest version of the migrations, or zero if the directory contains no scripts.
      */
     public int getLatestVersion() {
-        if (migrationScripts.isEmpty()) {
-            return 0;
+        int latestVersion = 0;
+        if (migrationScripts != null && !migrationScripts.isEmpty()) {
+            latestVersion = migrationScripts.get(migrationScripts.size() - 1).getVersion();
+        }
+        if (backfillMigrations != null && !backfillMigrations.isEmpty()) {
+            latestVersion = Math.max(latestVersion,
+                    backfillMigrations.get(backfillMigrations.size() - 1).getVersion());
+        }
+        return latestVersion;
+    }
+
+    /**
+     * Determines the latest script version in the given location without reading the scripts. This does not need a
+     * Spring environment and is used for the fast up-to-date check before the application context is started.
+     * Scripts inside the packaged jar, including its <code>BOOT-INF/classes</code>, are only found because
+     * {@link ClassPathLocationScanner#forUrl(URL)} picks the jar scanner for <code>jar:</code> URLs.
+     *
+     * @param scriptPath the folder on disk or, if <code>classpath</code> is set, the location on the classpath
+     * @param classpath  whether the scripts are looked up on the classpath
+     * @return the highest version found, zero if there is no script
+     * @throws IOException if scanning the location fails
+     */
+    public static int findLatestVersion(String scriptPath, boolean classpath) throws IOException {
+        List<String> resourceNames = new ArrayList<>();
+        if (classpath) {
+            Enumeration<URL> scriptResources = MigrationRepository.class.getClassLoader().getResources(scriptPath);
+            while (scriptResources.hasMoreElements()) {
+                URL scriptResource = scriptResources.nextElement();
+                resourceNames.addAll(ClassPathLocationScanner.forUrl(scriptResource).findResourceNames(scriptPath,
+                        scriptResource));
+            }
+        } else {
+            String[] fileNames = new File(scriptPath).list();
+            if (fileNames != null) {
+                resourceNames.addAll(Arrays.asList(fileNames));
+            }
+        }
+        int latestVersion = 0;
+        for (String resourceName : resourceNames) {
+            if (isMigrationScript(resourceName)) {
+                String scriptName = resourceName.substring(resourceName.lastIndexOf('/') + 1);
+                latestVersion = Math.max(latestVersion, extractScriptVersion(scriptName));
+            }
+        }
+        for (String className : findBackfillClassNames()) {
+            Matcher matcher = BACKFILL_CLASS_PATTERN.matcher(className.substring(className.lastIndexOf('/') + 1));
+            if (matcher.matches()) {
+                latestVersion = Math.max(latestVersion, parseInt(matcher.group(1)));
+            }
+        }
+        return latestVersion;
+    }
+
+    /**
+     * Finds the class files in <code>BACKFILL_PACKAGE</code>. Backfills are always taken from the classpath, no
+     * matter where the scripts are read from.
+     */
+    private static Set<String> findBackfillClassNames() throws IOException {
+        Set<String> classNames = new TreeSet<>();
+        Enumeration<URL> locations = MigrationRepository.class.getClassLoader().getResources(BACKFILL_PACKAGE);
+        while (locations.hasMoreElements()) {
+            URL location = locations.nextElement();
+            classNames.addAll(ClassPathLocationScanner.forUrl(location).findResourceNames(BACKFILL_PACKAGE,
+                    location));
         }
-        return migrationScripts.get(migrationScripts.size() - 1).getVersion();
+        return classNames;
     }
 
-    private List<Script> scanForScripts(String scriptPath) throws IOException {
+    private List<DbMigration> scanForBackfills() throws IOException {
+        LOGGER.debug("Scanning for backfill migrations in " + BACKFILL_PACKAGE);
+        List<DbMigration> backfills = new ArrayList<>();
+        Set<Integer> scriptVersions = new HashSet<>();
+        if (migrationScripts != null) {
+            migrationScripts.forEach(script -> scriptVersions.add(script.getVersion()));
+        }
+        for (String resource : findBackfillClassNames()) {
+            String fileName = resource.substring(resource.lastIndexOf('/') + 1);
+            Matcher matcher = BACKFILL_CLASS_PATTERN.matcher(fileName);
+            if (!matcher.matches()) {
+                continue;
+            }
+            String className = resource.substring(0, resource.length() - ".class".length()).replace('/', '.');
+            int version = parseInt(matcher.group(1));
+            if (scriptVersions.contains(version)) {
+                throw new MigrationException(format(DUPLICATE_VERSION_ERROR_MSG, className), null, fileName);
+            }
+            try {
+                Object backfill = Class.forName(className, true, getClass().getClassLoader()).newInstance();
+                if (!(backfill instanceof BackfillMigration)) {
+                    LOGGER.warn(format("Ignoring class %s because it is no backfill migration.", className));
+                    continue;
+                }
+                backfills.add(new DbMigration(version + VERSION_NAME_DELIMITER + matcher.group(2), version,
+                        (BackfillMigration) backfill));
+            } catch (ReflectiveOperationException exception) {
+                throw new MigrationException(format(LOADING_BACKFILL_ERROR_MSG, className), exception, fileName);
+            }
+        }
+        backfills.sort(Comparator.comparingInt(DbMigration::getVersion));
+        LOGGER.info(format("Found %d backfill migrations", backfills.size()));
+        return backfills;
+    }
+
+    private List<Script> scanForScripts(String scriptPath, String classpathLocation) throws IOException {
         if (ObjectUtils.isEmpty(environment)) {
             return null;
         }
         List<String> profiles = Lists.newArrayList(environment.getActiveProfiles());
         if (profiles.contains("custom")) {
-            return scanForScriptsCustom(DEFAULT_SCRIPT_PATH);
+            return scanForScriptsCustom(classpathLocation);
         }
         LOGGER.debug("Scanning for cql migration scripts in " + scriptPath);
         File folder = new File(scriptPath);
@@ -195,10 +320,10 @@ public class MigrationRepository {
         Set<MigrationRepository.Script> scripts = new TreeSet<>();
         while (scriptResources.hasMoreElements()) {
             URL script = scriptResources.nextElement();
-            ClassPathLocationScanner scanner = new FileSystemLocationScanner();
+            ClassPathLocationScanner scanner = ClassPathLocationScanner.forUrl(script);
             for (String resource : scanner.findResourceNames(scriptPath, script)) {
                 if (isMigrationScript(resource)) {
-                    String scriptName = extractScriptName(resource);
+                    String scriptName = extractScriptName(resource, scriptPath);
                     int version = extractScriptVersion(scriptName);
                     scripts.add(new MigrationRepository.Script(version, resource, scriptName));
                 } else {
@@ -225,8 +350,58 @@ public class MigrationRepository {
         return resource.endsWith(SCRIPT_EXTENSION);
     }
 
-    private String extractScriptName(String resourceName) {
-        return resourceName.substring(scriptPath.length());
+    private String extractScriptName(String resourceName, String location) {
+        return resourceName.substring(normalizePath(location).length());
+    }
+
+    /**
+     * Looks up the baseline script with the highest version that is not newer than the latest migration script.
+     * Baseline scripts are named like migration scripts and are generated with the <code>baseline</code> command.
+     *
+     * @return the baseline or null if there is none
+     * @throws MigrationException if the baseline folder cannot be scanned or read
+     */
+    public DbMigration getBaseline() {
+        List<Script> baselines;
+        try {
+            baselines = scanForScripts(serverBaselinePath, DEFAULT_BASELINE_PATH);
+        } catch (IOException exception) {
+            throw new MigrationException(SCANNING_SCRIPT_FOLDER_ERROR_MSG, exception);
+        }
+        if (baselines == null) {
+            return null;
+        }
+        Script baseline = null;
+        for (Script script : baselines) {
+            if (script.getVersion() <= getLatestVersion()) {
+                baseline = script;
+            }
+        }
+        if (baseline == null) {
+            return null;
+        }
+        return loadMigration(baseline);
+    }
+
+    /**
+     * Writes a baseline script for the given version into the baseline folder.
+     *
+     * @param version the schema version the baseline represents
+     * @param script  the consolidated schema script
+     * @return the written file
+     * @throws IOException if the file cannot be written
+     */
+    public File writeBaseline(int version, String script) throws IOException {
+        File folder = new File(serverBaselinePath);
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Unable to create baseline folder " + folder.getAbsolutePath());
+        }
+        File file = new File(folder, version + VERSION_NAME_DELIMITER + BASELINE_NAME + SCRIPT_EXTENSION);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), SCRIPT_ENCODING)) {
+            writer.write(format("-- baseline of schema version %d generated at %s%n", version, new Date()));
+            writer.write(script);
+        }
+        return file;
     }
 
     /**
@@ -240,45 +415,40 @@ public class MigrationRepository {
      */
     public List<DbMigration> getMigrationsSinceVersion(int version) {
         List<DbMigration> dbMigrations = new ArrayList<>();
-        migrationScripts.stream().filter(script -> script.getVersion() > version).forEach(script -> {
-            String content = loadScriptContent(script);
-            dbMigrations.add(new DbMigration(script.getScriptName(), script.getVersion(), content));
-        });
+        migrationScripts.stream().filter(script -> script.getVersion() > version)
+                .forEach(script -> dbMigrations.add(loadMigration(script)));
+        backfillMigrations.stream().filter(backfill -> backfill.getVersion() > version)
+                .forEach(dbMigrations::add);
+        dbMigrations.sort(Comparator.comparingInt(DbMigration::getVersion));
         return dbMigrations;
     }
 
-    private String loadScriptContent(Script script) {
+    /**
+     * Reads a script and parses the execution directives in its header.
+     */
+    private DbMigration loadMigration(Script script) {
         try {
-            return readResourceFileAsString(script.getResourceName(), getClass().getClassLoader());
+            List<String> lines = readResourceLines(script.getResourceName(), getClass().getClassLoader());
+            StringBuilder fileContent = new StringBuilder(256);
+            lines.stream().filter(line -> !isLineComment(line)).forEach(fileContent::append);
+            return new DbMigration(script.getScriptName(), script.getVersion(), fileContent.toString(),
+                    ExecutionDirectives.parse(lines, script.getScriptName()));
         } catch (IOException exception) {
             throw new MigrationException(format(READING_SCRIPT_ERROR_MSG, script.getResourceName()),
                     exception, script.getScriptName());
         }
     }
 
-    private String readResourceFileAsString(String resourceName, ClassLoader classLoader) throws IOException {
-        if (ObjectUtils.isEmpty(environment)) {
-            return null;
-        }
+    private List<String> readResourceLines(String resourceName, ClassLoader classLoader) throws IOException {
         List<String> profiles = Lists.newArrayList(environment.getActiveProfiles());
-        if (profiles.contains("custom")) {
-            return readResourceFileAsStringCustom(resourceName, classLoader);
+        InputStream input = profiles.contains("custom")
+                ? classLoader.getResourceAsStream(resourceName) : new FileInputStream(resourceName);
+        if (input == null) {
+            throw new FileNotFoundException(resourceName);
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, SCRIPT_ENCODING))) {
+            return reader.lines().collect(Collectors.toList());
         }
-
-        StringBuilder fileContent = new StringBuilder(256);
-        new BufferedReader(
-                new InputStreamReader(new FileInputStream(resourceName), SCRIPT_ENCODING))
-                .lines().filter(line -> !isLineComment(line)).forEach(fileContent::append);
-        return fileContent.toString();
-    }
-
-
-    private String readResourceFileAsStringCustom(String resourceName, ClassLoader classLoader) throws IOException {
-        StringBuilder fileContent = new StringBuilder(256);
-        new BufferedReader(
-                new InputStreamReader(classLoader.getResourceAsStream(resourceName), SCRIPT_ENCODING))
-                .lines().filter(line -> !isLineComment(line)).forEach(fileContent::append);
-        return fileContent.toString();
     }
 
     private boolean isLineComment(String line) {
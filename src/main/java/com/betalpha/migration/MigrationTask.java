@@ -3,7 +3,12 @@ package com.betalpha.migration;
 import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
 
 import static com.betalpha.migration.util.Ensure.notNull;
 import static java.lang.String.format;
@@ -20,8 +25,19 @@ import static org.slf4j.LoggerFactory.getLogger;
 public class MigrationTask {
     private static final Logger LOGGER = getLogger(MigrationTask.class);
 
+    /**
+     * Prefix of the script name recorded for versions that were covered by a baseline.
+     */
+    private static final String BASELINE_SCRIPT_PREFIX = "baseline:";
+
     private final Database database;
     private final MigrationRepository repository;
+    private MigrationLease lease;
+    private long leaseMaxWaitMillis;
+    private long leaseInitialBackoffMillis;
+    private long leaseMaxBackoffMillis;
+    private boolean baselineEnabled;
+    private Set<Integer> skippedDataVersions = Collections.emptySet();
 
     /**
      * Creates a migration task that uses the given database and repository.
@@ -34,11 +50,54 @@ public class MigrationTask {
         this.repository = notNull(repository, "repository");
     }
 
+    /**
+     * Makes this task coordinate with other instances through the given lease. Only the instance holding the lease
+     * migrates, all others wait with backoff until the lease is released and then find the keyspace up to date.
+     *
+     * @param lease                the lease shared by all instances migrating the keyspace
+     * @param maxWaitMillis        how long a follower waits for the leader before giving up
+     * @param initialBackoffMillis the first pause between two attempts to take the lease
+     * @param maxBackoffMillis     the upper bound of the pause between two attempts to take the lease
+     */
+    public void useLease(MigrationLease lease, long maxWaitMillis, long initialBackoffMillis, long maxBackoffMillis) {
+        this.lease = notNull(lease, "lease");
+        this.leaseMaxWaitMillis = maxWaitMillis;
+        this.leaseInitialBackoffMillis = initialBackoffMillis;
+        this.leaseMaxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * Enables bootstrapping empty keyspaces from the baseline script of the repository. Instead of replaying every
+     * migration script the baseline is applied once and the versions up to the baseline version are recorded as
+     * baselined.
+     * <p>
+     * The baseline only holds the schema. After it was applied, the data changes of the covered versions are replayed
+     * version by version on top of it: the inserts, updates and deletes of every covered script, followed by its
+     * data folder. Writes and data files of tables that a later covered script dropped are skipped.
+     *
+     * @param baselineEnabled true to apply the baseline to empty keyspaces
+     */
+    public void setBaselineEnabled(boolean baselineEnabled) {
+        this.baselineEnabled = baselineEnabled;
+    }
+
+    /**
+     * Sets the versions whose pending data step is given up instead of being loaded again, e.g. because the data no
+     * longer fits the schema. Their data step is recorded as no longer pending and stays data_successful = false.
+     *
+     * @param skippedDataVersions the versions whose pending data is not loaded
+     */
+    public void setSkippedDataVersions(Set<Integer> skippedDataVersions) {
+        this.skippedDataVersions = notNull(skippedDataVersions, "skippedDataVersions");
+    }
+
     /**
      * Start the actual migration. Take the version of the database, get all required migrations and executeScript them or do
      * nothing if the DB is already up to date.
      * <p>
      * At the end the underlying database instance is closed.
+     * <p>
+     * If a lease is configured the migrations only run while holding it.
      *
      * @throws MigrationException if a migration fails
      */
@@ -48,8 +107,30 @@ public class MigrationTask {
                     database.getVersion()));
             return;
         }
+        if (lease == null) {
+            migrateUnlocked();
+            database.close();
+            return;
+        }
 
-        List<DbMigration> migrations = repository.getMigrationsSinceVersion(database.getVersion());
+        lease.acquire(leaseMaxWaitMillis, leaseInitialBackoffMillis, leaseMaxBackoffMillis,
+                () -> LOGGER.info(format("Waiting for %s to migrate keyspace %s, currently at version %d of %d",
+                        lease.currentOwner(), database.getKeyspaceName(), database.getVersion(),
+                        repository.getLatestVersion())));
+        try {
+            if (databaseIsUpToDate()) {
+                LOGGER.info(format("Keyspace %s was migrated to version %d by another instance",
+                        database.getKeyspaceName(), database.getVersion()));
+                return;
+            }
+            migrateUnlocked();
+        } finally {
+            lease.release();
+            database.close();
+        }
+    }
+
+    private void migrateUnlocked() {
         List<String> profiles = Lists.newArrayList(repository.getEnvironment().getActiveProfiles());
         String command = "docker exec -it casscon cqlsh -f ";
         boolean custom=false;
@@ -59,16 +140,91 @@ public class MigrationTask {
         }
         String finalCommand = command;
         boolean finalCustom = custom;
+        if (baselineEnabled && database.getVersion() == 0 && database.isKeyspaceEmpty()) {
+            applyBaseline(finalCommand, finalCustom);
+        }
+        retryPendingData(finalCommand, finalCustom);
+        List<DbMigration> migrations = repository.getMigrationsSinceVersion(database.getVersion());
         migrations.forEach(dbMigration -> {
+            ensureLeaseIsHeld();
+            if (dbMigration.getBackfill() != null) {
+                database.executeBackfill(dbMigration);
+                return;
+            }
             database.executeScript(dbMigration);
             database.executeData(dbMigration, repository.getServerDataPath(), finalCommand, finalCustom);
 
         });
         LOGGER.info(format("Migrated keyspace %s to version %d", database.getKeyspaceName(), database.getVersion()));
-        database.close();
+    }
+
+    /**
+     * Loads the data of versions whose script was applied but whose data step failed or never ran, so a failed data
+     * step keeps stopping the migration until it succeeds or the version is skipped.
+     */
+    private void retryPendingData(String command, boolean custom) {
+        Set<Integer> pending = new TreeSet<>(database.getVersionsWithPendingData());
+        for (Iterator<Integer> versions = pending.iterator(); versions.hasNext(); ) {
+            int version = versions.next();
+            if (skippedDataVersions.contains(version)) {
+                LOGGER.warn(format("Skipping the pending data of version %d of keyspace %s, it stays recorded with"
+                        + " data_successful = false", version, database.getKeyspaceName()));
+                database.acknowledgePendingData(version);
+                versions.remove();
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        LOGGER.info(format("Loading the data of versions %s of keyspace %s again", pending,
+                database.getKeyspaceName()));
+        repository.getMigrationsSinceVersion(0).stream()
+                .filter(dbMigration -> pending.contains(dbMigration.getVersion()))
+                .filter(dbMigration -> dbMigration.getBackfill() == null)
+                .forEach(dbMigration -> {
+                    ensureLeaseIsHeld();
+                    database.executeData(dbMigration, repository.getServerDataPath(), command, custom);
+                });
+    }
+
+    private void applyBaseline(String command, boolean custom) {
+        DbMigration baseline = repository.getBaseline();
+        if (baseline == null) {
+            LOGGER.info(format("No baseline found, replaying all migrations of keyspace %s",
+                    database.getKeyspaceName()));
+            return;
+        }
+        List<DbMigration> covered = repository.getMigrationsSinceVersion(0).stream()
+                .filter(dbMigration -> dbMigration.getVersion() <= baseline.getVersion())
+                .collect(Collectors.toList());
+        database.executeBaseline(baseline);
+        covered.forEach(dbMigration -> {
+            ensureLeaseIsHeld();
+            String scriptName = BASELINE_SCRIPT_PREFIX + dbMigration.getScriptName();
+            if (dbMigration.getBackfill() != null) {
+                // a backfill of an empty keyspace copies nothing
+                database.recordBaselined(new DbMigration(scriptName, dbMigration.getVersion(),
+                        dbMigration.getMigrationScript()));
+                return;
+            }
+            DbMigration baselined = new DbMigration(scriptName, dbMigration.getVersion(),
+                    dbMigration.getMigrationScript(), dbMigration.getDirectives());
+            database.executeDataChanges(baselined);
+            database.executeData(baselined, repository.getServerDataPath(), command, custom, true);
+        });
+        LOGGER.info(format("Baselined keyspace %s to version %d", database.getKeyspaceName(),
+                baseline.getVersion()));
+    }
+
+    private void ensureLeaseIsHeld() {
+        if (lease != null && !lease.isHeld()) {
+            throw new LeaseLostException(format("Lost the migration lease of keyspace %s, stopping the migration",
+                    database.getKeyspaceName()));
+        }
     }
 
     private boolean databaseIsUpToDate() {
-        return database.getVersion() >= repository.getLatestVersion();
+        return database.getVersion() >= repository.getLatestVersion()
+                && database.getVersionsWithPendingData().isEmpty();
     }
 }
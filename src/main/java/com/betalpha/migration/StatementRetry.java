@@ -0,0 +1,250 @@
+package com.betalpha.migration;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.WriteType;
+import com.datastax.driver.core.exceptions.BootstrappingException;
+import com.datastax.driver.core.exceptions.ConnectionException;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.OverloadedException;
+import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import com.datastax.driver.core.exceptions.UnavailableException;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Decides whether a failed statement is executed again and how long to wait before. A statement is only retried if
+ * both hold:
+ * <ul>
+ * <li>the error is transient: timeouts, unavailable or overloaded replicas and connection problems. Errors in the
+ * statement itself, like syntax errors, invalid queries or failing replicas, are fatal.</li>
+ * <li>the statement can be applied twice with the same result: reads, <code>IF [NOT] EXISTS</code> schema changes
+ * and writes that set plain values. Counter updates, list appends and prepends, removals by list index,
+ * lightweight transactions and writes using <code>now()</code> or <code>uuid()</code> are not retried unless the
+ * statement is marked idempotent, which always wins over the cql text.</li>
+ * </ul>
+ * Between two attempts the caller waits with a jittered exponential backoff.
+ */
+public class StatementRetry {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StatementRetry.class);
+
+    /**
+     * Executes every statement exactly once.
+     */
+    public static final StatementRetry NONE = new StatementRetry(1, 0, 0);
+
+    private static final Pattern READ_PATTERN = Pattern.compile("^\\s*select\\s.*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern CONDITIONAL_DDL_PATTERN = Pattern.compile(
+            "^\\s*(create|drop|alter)\\s.*\\sif\\s+(not\\s+)?exists\\s.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern WRITE_PATTERN = Pattern.compile("^\\s*(insert|update|delete)\\s.*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    /**
+     * Lightweight transactions: <code>IF NOT EXISTS</code>, <code>IF EXISTS</code> and <code>IF column = ...</code>.
+     */
+    private static final Pattern CONDITIONAL_WRITE_PATTERN = Pattern.compile(".*\\sif\\s.*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    /**
+     * Assignments based on the current value, <code>c = c + 1</code>, <code>l = l + [...]</code> or
+     * <code>l = [...] + l</code>. Sets and maps would be safe, but cannot be told apart from lists here.
+     */
+    private static final Pattern RELATIVE_ASSIGNMENT_PATTERN = Pattern.compile(
+            ".*?([\\w\"]+)\\s*=\\s*(\\1\\s*[+-]|[^,;]*?[+-]\\s*\\1(\\s|,|$)).*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    /**
+     * Removals by list index, <code>DELETE l[0] FROM ...</code>, remove a different element every time. Removing a map
+     * entry by key would be safe, but cannot be told apart from lists here.
+     */
+    private static final Pattern INDEX_REMOVAL_PATTERN = Pattern.compile(
+            "^\\s*delete\\s+(?!from\\s)((?!\\sfrom\\s).)*\\[.*", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern NON_DETERMINISTIC_PATTERN = Pattern.compile(".*\\b(now|uuid)\\s*\\(\\s*\\).*",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "migration-statement-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+
+    /**
+     * Creates a new retry policy.
+     *
+     * @param maxAttempts          the maximum number of times a statement is executed, one disables retries
+     * @param initialBackoffMillis the pause before the first retry
+     * @param maxBackoffMillis     the upper bound of the pause between two attempts
+     */
+    public StatementRetry(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoffMillis = Math.max(1, initialBackoffMillis);
+        this.maxBackoffMillis = Math.max(this.initialBackoffMillis, maxBackoffMillis);
+    }
+
+    /**
+     * Executes a statement and retries it while the error is transient and the statement is safe to retry.
+     *
+     * @param session     the session to execute the statement with
+     * @param statement   the statement
+     * @param description describes the statement in the log
+     * @return the result of the first successful attempt
+     * @throws RuntimeException the error of the last attempt
+     */
+    public ResultSet execute(Session session, Statement statement, String description) {
+        return execute(session, statement, description, new AtomicInteger());
+    }
+
+    /**
+     * Executes a statement and retries it while the error is transient and the statement is safe to retry.
+     *
+     * @param session     the session to execute the statement with
+     * @param statement   the statement
+     * @param description describes the statement in the log
+     * @param retries     counts the attempts after the first one
+     * @return the result of the first successful attempt
+     * @throws RuntimeException the error of the last attempt
+     */
+    public ResultSet execute(Session session, Statement statement, String description, AtomicInteger retries) {
+        int attempt = 1;
+        while (true) {
+            try {
+                return session.execute(statement);
+            } catch (RuntimeException exception) {
+                if (!shouldRetry(statement, exception, attempt)) {
+                    throw exception;
+                }
+                long pause = backoffMillis(attempt);
+                LOGGER.warn("Attempt {} of '{}' failed with {}, retrying in {} ms.", attempt, description,
+                        exception.toString(), pause);
+                try {
+                    Thread.sleep(pause);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw exception;
+                }
+                attempt++;
+                retries.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Runs the task after the backoff of the given attempt on a shared scheduler thread. Used to retry asynchronous
+     * requests without blocking a driver thread.
+     *
+     * @param attempt the number of the attempt that failed
+     * @param task    the next attempt
+     */
+    public void schedule(int attempt, Runnable task) {
+        SCHEDULER.schedule(task, backoffMillis(attempt), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Decides whether a statement is executed again after an attempt failed.
+     *
+     * @param statement the failed statement
+     * @param error     the error of the attempt
+     * @param attempt   the number of the attempt that failed, starting with one
+     * @return true if the statement is retried
+     */
+    public boolean shouldRetry(Statement statement, Throwable error, int attempt) {
+        return attempt < maxAttempts && isTransient(error) && isSafeToRetry(statement);
+    }
+
+    /**
+     * Returns the pause before the next attempt: doubles with every attempt up to the maximum, randomized between
+     * half and the full value so retrying clients spread out.
+     *
+     * @param attempt the number of the attempt that failed, starting with one
+     * @return the pause in milliseconds
+     */
+    public long backoffMillis(int attempt) {
+        long backoff = initialBackoffMillis << Math.min(attempt - 1, 30);
+        backoff = Math.min(backoff < 0 ? maxBackoffMillis : backoff, maxBackoffMillis);
+        return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    }
+
+    /**
+     * Checks whether an error is transient, i.e. the same statement may succeed when executed again.
+     *
+     * @param error the error, causes of a {@link MigrationException} are examined
+     * @return true if the error is transient
+     */
+    public static boolean isTransient(Throwable error) {
+        while (error instanceof MigrationException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        if (error instanceof WriteTimeoutException) {
+            // a timed out lightweight transaction may or may not have been applied
+            WriteType writeType = ((WriteTimeoutException) error).getWriteType();
+            return writeType != WriteType.CAS && writeType != WriteType.COUNTER;
+        }
+        return error instanceof ReadTimeoutException
+                || error instanceof UnavailableException
+                || error instanceof OverloadedException
+                || error instanceof BootstrappingException
+                || error instanceof NoHostAvailableException
+                || error instanceof OperationTimedOutException
+                || error instanceof ConnectionException;
+    }
+
+    /**
+     * Checks whether executing a statement twice has the same effect as executing it once. A statement explicitly
+     * marked idempotent or not idempotent is taken as marked, otherwise its cql text decides.
+     *
+     * @param statement the statement
+     * @return true if the statement may be retried
+     */
+    public static boolean isSafeToRetry(Statement statement) {
+        if (statement.isIdempotent() != null) {
+            return statement.isIdempotent();
+        }
+        if (statement instanceof BatchStatement) {
+            for (Statement child : ((BatchStatement) statement).getStatements()) {
+                if (!isSafeToRetry(child)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        String query = null;
+        if (statement instanceof RegularStatement) {
+            query = ((RegularStatement) statement).getQueryString();
+        } else if (statement instanceof BoundStatement) {
+            query = ((BoundStatement) statement).preparedStatement().getQueryString();
+        }
+        return query != null && isSafeToRetry(query);
+    }
+
+    /**
+     * Checks whether executing a cql statement twice has the same effect as executing it once.
+     *
+     * @param query the cql text
+     * @return true if the statement may be retried
+     */
+    public static boolean isSafeToRetry(String query) {
+        if (READ_PATTERN.matcher(query).matches() || CONDITIONAL_DDL_PATTERN.matcher(query).matches()) {
+            return true;
+        }
+        return WRITE_PATTERN.matcher(query).matches()
+                && !CONDITIONAL_WRITE_PATTERN.matcher(query).matches()
+                && !RELATIVE_ASSIGNMENT_PATTERN.matcher(query).matches()
+                && !INDEX_REMOVAL_PATTERN.matcher(query).matches()
+                && !NON_DETERMINISTIC_PATTERN.matcher(query).matches();
+    }
+}
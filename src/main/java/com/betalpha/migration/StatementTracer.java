@@ -0,0 +1,294 @@
+package com.betalpha.migration;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ExecutionInfo;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.QueryTrace;
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.utils.UUIDs;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+
+/**
+ * Captures diagnostics of the statements executed by a migration. A configurable fraction of the statements is
+ * executed with query tracing enabled, and every statement that takes longer than the slow threshold is captured as
+ * well. For a captured statement the coordinator, the hosts that were tried, the retries, speculative executions,
+ * warnings and,
+ * if it was traced, the trace events of the replicas are written as one JSON line to the report file and,
+ * optionally, to the <code>migration_trace</code> table.
+ * <p>
+ * Traces are fetched and written on a background thread, so capturing does not slow down the migration. If the
+ * background thread falls behind, reports are dropped and counted.
+ */
+public class StatementTracer implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StatementTracer.class);
+
+    /**
+     * A tracer that never captures anything. It keeps no state, so it can be shared.
+     */
+    public static final StatementTracer DISABLED = new StatementTracer(0, 0, null, null);
+
+    static final String TRACE_CF = "migration_trace";
+    static final String CREATE_TRACE_CF = "CREATE TABLE IF NOT EXISTS %s (version int, executed_at timeuuid,"
+            + " script_name text, statement text, latency_micros bigint, coordinator text, report text,"
+            + " PRIMARY KEY (version, executed_at))";
+    private static final String INSERT_TRACE = "insert into %s (version, executed_at, script_name, statement,"
+            + " latency_micros, coordinator, report) values (?, ?, ?, ?, ?, ?, ?) using ttl %d";
+    private static final int TRACE_TTL_SECONDS = 30 * 24 * 3600;
+    private static final int MAX_STATEMENT_LENGTH = 2000;
+    private static final int MAX_PENDING_REPORTS = 1000;
+
+    private final double sampleRate;
+    private final long slowThresholdMicros;
+    private final Writer reportWriter;
+    private final Session diagnosticsSession;
+    private final PreparedStatement insertTraceStatement;
+    private final ThreadPoolExecutor executor;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final AtomicLong droppedReports = new AtomicLong();
+    private volatile String scriptName;
+    private volatile int version;
+
+    /**
+     * Creates a new tracer.
+     *
+     * @param sampleRate          fraction of the statements that are executed with tracing, between 0 and 1
+     * @param slowThresholdMillis statements taking longer are captured, zero or less disables slow capture
+     * @param reportFile          the JSON lines file the reports are appended to, null to skip the file. A file that
+     *                            cannot be opened is skipped as well, diagnostics never fail a migration
+     * @param diagnosticsSession  session used to write the reports to the diagnostics table, null to skip the table.
+     *                            The table must exist, see {@link #TRACE_CF}
+     */
+    public StatementTracer(double sampleRate, long slowThresholdMillis, File reportFile, Session diagnosticsSession) {
+        this.sampleRate = Math.max(0, Math.min(1, sampleRate));
+        this.slowThresholdMicros = slowThresholdMillis > 0 ? slowThresholdMillis * 1000 : Long.MAX_VALUE;
+        this.diagnosticsSession = diagnosticsSession;
+        if (!isEnabled(this.sampleRate, slowThresholdMillis)) {
+            this.reportWriter = null;
+            this.insertTraceStatement = null;
+            this.executor = null;
+            return;
+        }
+        this.reportWriter = reportFile == null ? null : openReport(reportFile);
+        if (diagnosticsSession != null) {
+            this.insertTraceStatement = diagnosticsSession.prepare(format(INSERT_TRACE, TRACE_CF,
+                    TRACE_TTL_SECONDS));
+        } else {
+            this.insertTraceStatement = null;
+        }
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_PENDING_REPORTS), runnable -> {
+            Thread thread = new Thread(runnable, "migration-statement-tracer");
+            thread.setDaemon(true);
+            return thread;
+        }, (runnable, pool) -> droppedReports.incrementAndGet());
+        LOGGER.info("Tracing {}% of the statements and statements slower than {} ms, report file {}.",
+                this.sampleRate * 100, slowThresholdMillis, reportFile);
+    }
+
+    private static Writer openReport(File reportFile) {
+        try {
+            File folder = reportFile.getAbsoluteFile().getParentFile();
+            if (folder != null && !folder.isDirectory() && !folder.mkdirs()) {
+                throw new IOException("Unable to create folder " + folder);
+            }
+            return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(reportFile, true), "UTF-8"));
+        } catch (IOException exception) {
+            LOGGER.warn("Unable to open trace report {}, reports are not written to a file.", reportFile, exception);
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether a tracer with the given settings captures anything.
+     *
+     * @param sampleRate          fraction of the statements that are executed with tracing
+     * @param slowThresholdMillis statements taking longer are captured, zero or less disables slow capture
+     * @return true if statements are sampled or slow statements are captured
+     */
+    static boolean isEnabled(double sampleRate, long slowThresholdMillis) {
+        return sampleRate > 0 || slowThresholdMillis > 0;
+    }
+
+    /**
+     * Sets the migration the following statements belong to.
+     *
+     * @param scriptName the name of the script
+     * @param version    the version of the migration
+     */
+    public void setContext(String scriptName, int version) {
+        if (executor == null) {
+            return;
+        }
+        this.scriptName = scriptName;
+        this.version = version;
+    }
+
+    /**
+     * Enables tracing on the statement if it is picked by the sampling.
+     *
+     * @param statement the statement about to be executed
+     * @return the statement
+     */
+    public Statement sample(Statement statement) {
+        if (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate) {
+            statement.enableTracing();
+        }
+        return statement;
+    }
+
+    /**
+     * Captures the executed statement if it was traced or slow.
+     *
+     * @param statement   the executed statement
+     * @param description a description of the statement, e.g. its text or its source line
+     * @param startNanos  the value of {@link System#nanoTime()} when the statement was sent
+     * @param resultSet   the result of the statement
+     * @param retries     the number of times the statement was executed again after a failure, see
+     *                    {@link StatementRetry}
+     */
+    public void record(Statement statement, String description, long startNanos, ResultSet resultSet, int retries) {
+        if (executor == null) {
+            return;
+        }
+        long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        if (!statement.isTracing() && latencyMicros < slowThresholdMicros) {
+            return;
+        }
+        String currentScript = scriptName;
+        int currentVersion = version;
+        executor.execute(() -> report(statement, description, latencyMicros, resultSet.getAllExecutionInfo(),
+                retries, currentScript, currentVersion));
+    }
+
+    private void report(Statement statement, String description, long latencyMicros, List<ExecutionInfo> infos,
+                        int retries, String script, int migrationVersion) {
+        try {
+            ExecutionInfo info = infos.get(infos.size() - 1);
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("timestamp", System.currentTimeMillis());
+            report.put("script", script);
+            report.put("version", migrationVersion);
+            report.put("statement", truncate(statementText(statement, description)));
+            report.put("latencyMicros", latencyMicros);
+            report.put("slow", latencyMicros >= slowThresholdMicros);
+            report.put("consistency", String.valueOf(statement.getConsistencyLevel()));
+            report.put("achievedConsistency", String.valueOf(info.getAchievedConsistencyLevel()));
+            report.put("coordinator", hostName(info.getQueriedHost()));
+            List<String> triedHosts = new ArrayList<>();
+            info.getTriedHosts().forEach(host -> triedHosts.add(hostName(host)));
+            report.put("triedHosts", triedHosts);
+            report.put("retries", retries);
+            report.put("speculativeExecutions", info.getSpeculativeExecutions());
+            report.put("schemaInAgreement", info.isSchemaInAgreement());
+            report.put("warnings", info.getWarnings());
+            QueryTrace trace = info.getQueryTrace();
+            if (trace != null) {
+                report.put("trace", traceReport(trace));
+            }
+            String json = objectMapper.writeValueAsString(report);
+            if (reportWriter != null) {
+                synchronized (reportWriter) {
+                    reportWriter.write(json);
+                    reportWriter.write('\n');
+                    reportWriter.flush();
+                }
+            }
+            if (insertTraceStatement != null) {
+                diagnosticsSession.execute(insertTraceStatement.bind(migrationVersion, UUIDs.timeBased(), script,
+                        truncate(statementText(statement, description)), latencyMicros,
+                        hostName(info.getQueriedHost()), json));
+            }
+        } catch (Exception exception) {
+            LOGGER.warn("Unable to write the trace of '{}'.", description, exception);
+        }
+    }
+
+    private static Map<String, Object> traceReport(QueryTrace trace) {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("traceId", String.valueOf(trace.getTraceId()));
+        report.put("coordinator", String.valueOf(trace.getCoordinator()));
+        report.put("durationMicros", trace.getDurationMicros());
+        report.put("requestType", trace.getRequestType());
+        report.put("parameters", trace.getParameters());
+        List<Map<String, Object>> events = new ArrayList<>();
+        for (QueryTrace.Event event : trace.getEvents()) {
+            Map<String, Object> eventReport = new LinkedHashMap<>();
+            eventReport.put("source", String.valueOf(event.getSource()));
+            eventReport.put("elapsedMicros", event.getSourceElapsedMicros());
+            eventReport.put("thread", event.getThreadName());
+            eventReport.put("description", event.getDescription());
+            events.add(eventReport);
+        }
+        report.put("events", events);
+        return report;
+    }
+
+    private static String statementText(Statement statement, String description) {
+        if (statement instanceof RegularStatement) {
+            return ((RegularStatement) statement).getQueryString();
+        }
+        if (statement instanceof BoundStatement) {
+            return ((BoundStatement) statement).preparedStatement().getQueryString() + " -- " + description;
+        }
+        return description;
+    }
+
+    private static String truncate(String text) {
+        return text == null || text.length() <= MAX_STATEMENT_LENGTH ? text : text.substring(0, MAX_STATEMENT_LENGTH);
+    }
+
+    private static String hostName(Host host) {
+        return host == null ? null : host.getSocketAddress().toString();
+    }
+
+    /**
+     * Waits for the pending reports and closes the report file.
+     */
+    @Override
+    public void close() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        if (droppedReports.get() > 0) {
+            LOGGER.warn("Dropped {} statement traces because the tracer fell behind.", droppedReports.get());
+        }
+        if (reportWriter != null) {
+            try {
+                reportWriter.close();
+            } catch (IOException exception) {
+                LOGGER.warn("Unable to close the trace report.", exception);
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.betalpha.migration;
+
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.Token;
+import com.datastax.driver.core.TokenRange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.betalpha.migration.util.Ensure.notNull;
+import static java.lang.String.format;
+
+/**
+ * Reads a whole table by splitting the token ring into ranges and paging through a bounded number of ranges at the
+ * same time. Every range is read by one query restricted on the token of the partition key, so all rows of a
+ * partition are read by the same query and arrive one after the other.
+ */
+public class TokenRangeScanner {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TokenRangeScanner.class);
+
+    private static final String SCAN_QUERY = "SELECT %s FROM %s.%s WHERE token(%s) > ? AND token(%s) <= ?";
+    private static final String SCAN_TO_END_QUERY = "SELECT %s FROM %s.%s WHERE token(%s) > ?";
+
+    /**
+     * Number of ranges per thread the ring is split into at least, so a slow range does not hold up the others.
+     */
+    private static final int RANGES_PER_THREAD = 4;
+
+    private final Session session;
+    private final ConsistencyLevel consistencyLevel;
+    private final int parallelism;
+    private final int pageSize;
+    private final StatementRetry retry;
+
+    /**
+     * Receives the rows of one token range.
+     */
+    public interface RangeHandler {
+        /**
+         * Handles the rows of a range. The rows are fetched page by page while they are iterated.
+         *
+         * @param range the token range
+         * @param rows  the rows of the table within the range
+         * @throws Exception if handling the rows fails, which stops the scan
+         */
+        void handle(TokenRange range, Iterator<Row> rows) throws Exception;
+    }
+
+    /**
+     * Creates a new scanner.
+     *
+     * @param session          the session the table is read with
+     * @param consistencyLevel the consistency level of the reads
+     * @param parallelism      the maximum number of ranges read at the same time
+     * @param pageSize         the number of rows fetched with one request
+     * @param retry            decides whether the first request of a range is sent again after a failure
+     */
+    public TokenRangeScanner(Session session, ConsistencyLevel consistencyLevel, int parallelism, int pageSize,
+                             StatementRetry retry) {
+        this.session = notNull(session, "session");
+        this.consistencyLevel = notNull(consistencyLevel, "consistencyLevel");
+        this.parallelism = Math.max(1, parallelism);
+        this.pageSize = Math.max(1, pageSize);
+        this.retry = notNull(retry, "retry");
+    }
+
+    /**
+     * Splits the token ring into ranges that do not wrap around the end of the ring. Every range of the cluster is
+     * split evenly, so there are at least <code>RANGES_PER_THREAD</code> ranges for every thread.
+     *
+     * @return the ranges covering the whole ring, in ring order
+     */
+    public List<TokenRange> splitRing() {
+        Metadata metadata = session.getCluster().getMetadata();
+        List<TokenRange> ringRanges = new ArrayList<>(metadata.getTokenRanges());
+        int splitsPerRange = Math.max(1, (parallelism * RANGES_PER_THREAD + ringRanges.size() - 1)
+                / Math.max(1, ringRanges.size()));
+        List<TokenRange> ranges = new ArrayList<>();
+        for (TokenRange ringRange : ringRanges) {
+            for (TokenRange split : ringRange.splitEvenly(splitsPerRange)) {
+                ranges.addAll(split.unwrap());
+            }
+        }
+        ranges.sort(null);
+        return ranges;
+    }
+
+    /**
+     * Splits the whole token ring into a fixed number of ranges. Unlike {@link #splitRing()} the ranges depend
+     * neither on the parallelism nor on the tokens of the nodes, so they stay the same across runs and can be used to
+     * checkpoint progress.
+     *
+     * @param count the number of ranges
+     * @return the ranges covering the whole ring, in ring order
+     * @throws MigrationException if the partitioner of the cluster is not supported
+     */
+    public List<TokenRange> splitRing(int count) {
+        Metadata metadata = session.getCluster().getMetadata();
+        Token minToken = metadata.newToken(minToken(metadata.getPartitioner()));
+        List<TokenRange> ranges = new ArrayList<>();
+        for (TokenRange split : metadata.newTokenRange(minToken, minToken).splitEvenly(Math.max(1, count))) {
+            ranges.addAll(split.unwrap());
+        }
+        ranges.sort(null);
+        return ranges;
+    }
+
+    private static String minToken(String partitioner) {
+        if (partitioner != null && partitioner.endsWith("Murmur3Partitioner")) {
+            return String.valueOf(Long.MIN_VALUE);
+        }
+        if (partitioner != null && partitioner.endsWith("RandomPartitioner")) {
+            return "-1";
+        }
+        throw new MigrationException(format("Partitioner %s cannot be split into fixed token ranges", partitioner),
+                null);
+    }
+
+    /**
+     * Reads all rows of the table within the given ranges and hands the rows of every range to the handler. The
+     * handler is called from several threads at the same time, but only once per range.
+     *
+     * @param table   the table to read
+     * @param columns the columns to read
+     * @param ranges  the ranges to read, usually the result of {@link #splitRing()} minus the ranges done before
+     * @param handler receives the rows of every range
+     * @return the number of ranges that were read
+     * @throws MigrationException if reading a range or handling its rows fails
+     */
+    public int scan(TableMetadata table, List<ColumnMetadata> columns, List<TokenRange> ranges,
+                    RangeHandler handler) {
+        return scan(table, columns, Collections.emptyList(), ranges, handler);
+    }
+
+    /**
+     * Reads all rows of the table within the given ranges together with the write time of some of their columns.
+     * The write times follow the columns in every row, as <code>writetime(&lt;column&gt;)</code>, in the order of
+     * <code>writeTimeColumns</code>.
+     *
+     * @param table            the table to read
+     * @param columns          the columns to read
+     * @param writeTimeColumns the columns whose write time is read, neither primary key columns nor collections that
+     *                         are not frozen
+     * @param ranges           the ranges to read
+     * @param handler          receives the rows of every range
+     * @return the number of ranges that were read
+     * @throws MigrationException if reading a range or handling its rows fails
+     * @see #scan(TableMetadata, List, List, RangeHandler)
+     */
+    public int scan(TableMetadata table, List<ColumnMetadata> columns, List<ColumnMetadata> writeTimeColumns,
+                    List<TokenRange> ranges, RangeHandler handler) {
+        String selection = Stream.concat(
+                columns.stream().map(column -> Metadata.quote(column.getName())),
+                writeTimeColumns.stream().map(column -> "writetime(" + Metadata.quote(column.getName()) + ")"))
+                .collect(Collectors.joining(", "));
+        String partitionKey = table.getPartitionKey().stream().map(column -> Metadata.quote(column.getName()))
+                .collect(Collectors.joining(", "));
+        String keyspace = Metadata.quote(table.getKeyspace().getName());
+        String tableName = Metadata.quote(table.getName());
+        PreparedStatement scan = session.prepare(format(SCAN_QUERY, selection, keyspace, tableName, partitionKey,
+                partitionKey)).setConsistencyLevel(consistencyLevel);
+        PreparedStatement scanToEnd = session.prepare(format(SCAN_TO_END_QUERY, selection, keyspace, tableName,
+                partitionKey)).setConsistencyLevel(consistencyLevel);
+
+        long start = System.currentTimeMillis();
+        AtomicInteger done = new AtomicInteger();
+        AtomicLong rowCount = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(1, ranges.size())),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "token-range-scanner");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        try {
+            List<Future<?>> futures = new ArrayList<>(ranges.size());
+            for (TokenRange range : ranges) {
+                futures.add(executor.submit(() -> {
+                    boolean toEnd = range.getEnd().compareTo(range.getStart()) <= 0;
+                    ResultSet resultSet = retry.execute(session, toEnd
+                            ? scanToEnd.bind().setToken(0, range.getStart()).setFetchSize(pageSize)
+                            : scan.bind().setToken(0, range.getStart()).setToken(1, range.getEnd())
+                            .setFetchSize(pageSize), format("scan of range %s of table %s", range, table.getName()));
+                    handler.handle(range, new PrefetchingIterator(resultSet, pageSize, rowCount));
+                    int completed = done.incrementAndGet();
+                    if (completed % Math.max(1, ranges.size() / 10) == 0) {
+                        LOGGER.info("Scanned {} of {} token ranges of table {}, {} rows.", completed, ranges.size(),
+                                table.getName(), rowCount.get());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            if (cause instanceof MigrationException) {
+                throw (MigrationException) cause;
+            }
+            throw new MigrationException(format("Error while scanning table %s", table.getName()), cause);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new MigrationException(format("Interrupted while scanning table %s", table.getName()), exception);
+        } finally {
+            executor.shutdownNow();
+        }
+        LOGGER.info("Scanned {} token ranges of table {} with {} rows within {} ms.", ranges.size(), table.getName(),
+                rowCount.get(), System.currentTimeMillis() - start);
+        return ranges.size();
+    }
+
+    /**
+     * Iterates the rows of a result set and requests the next page in the background when half of the current page
+     * is consumed, so handling the rows and fetching the next page overlap.
+     */
+    private static final class PrefetchingIterator implements Iterator<Row> {
+        private final ResultSet resultSet;
+        private final int prefetchThreshold;
+        private final AtomicLong rowCount;
+
+        private PrefetchingIterator(ResultSet resultSet, int pageSize, AtomicLong rowCount) {
+            this.resultSet = resultSet;
+            this.prefetchThreshold = Math.max(1, pageSize / 2);
+            this.rowCount = rowCount;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !resultSet.isExhausted();
+        }
+
+        @Override
+        public Row next() {
+            if (resultSet.getAvailableWithoutFetching() == prefetchThreshold && !resultSet.isFullyFetched()) {
+                resultSet.fetchMoreResults();
+            }
+            rowCount.incrementAndGet();
+            return resultSet.one();
+        }
+    }
+}
@@ -19,4 +19,17 @@ public interface ClassPathLocationScanner {
      * @throws IOException when the scanning failed.
      */
     Set<String> findResourceNames(String location, URL locationUrl) throws IOException;
+
+    /**
+     * Returns the scanner that is able to scan the given location.
+     *
+     * @param locationUrl The system-specific physical location URL.
+     * @return a {@link JarLocationScanner} for locations inside a jar, a {@link FileSystemLocationScanner} otherwise
+     */
+    static ClassPathLocationScanner forUrl(URL locationUrl) {
+        if ("jar".equals(locationUrl.getProtocol())) {
+            return new JarLocationScanner();
+        }
+        return new FileSystemLocationScanner();
+    }
 }
@@ -0,0 +1,158 @@
+package com.betalpha.migration.resolver;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Scans a location inside a jar file, e.g. the packaged Spring Boot jar, for resources. The central directory of
+ * the jar is read once through the zip file system and everything below <code>INDEXED_ROOT</code> is put into a
+ * sorted index that is kept for the life of the process. Later scans of any location below the root are answered
+ * from the index without touching the jar again. Nothing is extracted, the resources themselves are read through
+ * the class loader.
+ * <p>
+ * Resources inside jars that are nested in the jar (e.g. <code>BOOT-INF/lib</code>) are not supported.
+ */
+public class JarLocationScanner implements ClassPathLocationScanner {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JarLocationScanner.class);
+
+    /**
+     * The classpath location that is indexed. It contains the migration scripts and the data folders.
+     */
+    public static final String INDEXED_ROOT = "cassandra";
+
+    private static final String JAR_SEPARATOR = "!/";
+
+    private static final Map<String, NavigableSet<String>> INDEXES = new ConcurrentHashMap<>();
+
+    /**
+     * Finds the resource names below the location inside the jar the location url points to.
+     *
+     * @param location    The system-independent location on the classpath.
+     * @param locationUrl The <code>jar:</code> URL of the location.
+     * @return a sorted set containing all the resources inside the given location
+     * @throws IOException if the jar cannot be read
+     */
+    @Override
+    public Set<String> findResourceNames(String location, URL locationUrl) throws IOException {
+        String url = locationUrl.toString();
+        if (!url.startsWith("jar:")) {
+            LOGGER.debug("Skipping location as it is not inside a jar: " + url);
+            return new TreeSet<>();
+        }
+        String[] parts = url.substring("jar:".length()).split(JAR_SEPARATOR);
+        StringBuilder classPathRoot = new StringBuilder();
+        for (int i = 1; i < parts.length - 1; i++) {
+            if (parts[i].endsWith(".jar")) {
+                LOGGER.warn("Skipping location as it is inside a nested jar: " + url);
+                return new TreeSet<>();
+            }
+            classPathRoot.append(parts[i]).append('/');
+        }
+        String prefix = trimSlashes(location) + "/";
+        String indexKey = parts[0] + JAR_SEPARATOR + classPathRoot;
+        NavigableSet<String> index;
+        if (prefix.startsWith(INDEXED_ROOT + "/")) {
+            try {
+                index = INDEXES.computeIfAbsent(indexKey,
+                        key -> buildIndex(parts[0], classPathRoot.toString(), INDEXED_ROOT));
+            } catch (UncheckedIOException exception) {
+                throw exception.getCause();
+            }
+        } else {
+            index = buildIndex(parts[0], classPathRoot.toString(), trimSlashes(location));
+        }
+        return new TreeSet<>(index.subSet(prefix, true, prefix + Character.MAX_VALUE, false));
+    }
+
+    /**
+     * Reads the names of all files below the given root from the central directory of the jar.
+     *
+     * @param jarUrl        the url of the jar file itself
+     * @param classPathRoot the folder inside the jar that is the root of the classpath, empty or with trailing slash
+     * @param root          the classpath location below which the files are collected
+     * @return the classpath names of the files
+     */
+    private static NavigableSet<String> buildIndex(String jarUrl, String classPathRoot, String root) {
+        long start = System.currentTimeMillis();
+        URI jarUri;
+        try {
+            jarUri = new URI("jar:" + jarUrl);
+        } catch (URISyntaxException exception) {
+            throw new IllegalArgumentException("Invalid jar location " + jarUrl, exception);
+        }
+        NavigableSet<String> index = new TreeSet<>();
+        try (ZipFileSystem zipFileSystem = ZipFileSystem.open(jarUri)) {
+            Path rootPath = zipFileSystem.fileSystem.getPath("/" + classPathRoot + root);
+            if (Files.isDirectory(rootPath)) {
+                try (Stream<Path> paths = Files.walk(rootPath)) {
+                    paths.filter(Files::isRegularFile)
+                            .map(path -> trimSlashes(path.toString()).substring(classPathRoot.length()))
+                            .forEach(index::add);
+                }
+            }
+        } catch (IOException exception) {
+            throw new UncheckedIOException("Unable to index " + jarUrl, exception);
+        }
+        LOGGER.info("Indexed {} resources below {} in {} within {} ms.", index.size(), root, jarUrl,
+                System.currentTimeMillis() - start);
+        return Collections.unmodifiableNavigableSet(index);
+    }
+
+    private static String trimSlashes(String path) {
+        int begin = 0;
+        int end = path.length();
+        while (begin < end && path.charAt(begin) == '/') {
+            begin++;
+        }
+        while (end > begin && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        return path.substring(begin, end);
+    }
+
+    /**
+     * A zip file system that is only closed if it was opened by this scanner.
+     */
+    private static final class ZipFileSystem implements AutoCloseable {
+        private final FileSystem fileSystem;
+        private final boolean owned;
+
+        private ZipFileSystem(FileSystem fileSystem, boolean owned) {
+            this.fileSystem = fileSystem;
+            this.owned = owned;
+        }
+
+        static ZipFileSystem open(URI jarUri) throws IOException {
+            try {
+                return new ZipFileSystem(FileSystems.newFileSystem(jarUri, Collections.emptyMap()), true);
+            } catch (FileSystemAlreadyExistsException exception) {
+                return new ZipFileSystem(FileSystems.getFileSystem(jarUri), false);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (owned) {
+                fileSystem.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.betalpha.migration;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.TypeCodec;
+import org.apache.cassandra.io.sstable.CQLSSTableWriter;
+import org.apache.cassandra.utils.FBUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static com.betalpha.migration.util.Ensure.notNull;
+import static com.betalpha.migration.util.Ensure.notNullOrEmpty;
+import static java.lang.String.format;
+
+/**
+ * Loads data files by writing SSTables locally and streaming them into the cluster with the bulk loader, instead
+ * of sending every row through cql. Used for data folders with the directive <code>&#64;mode sstable</code>.
+ * <p>
+ * Every data file is written by its own {@link CQLSSTableWriter} on one of the writer threads, using the schema of
+ * the table from the cluster metadata. A writer keeps at most <code>bufferSizeMb</code> of rows in memory and writes
+ * them as one SSTable sorted by partition whenever the buffer is full. The buffers of all writers together are kept
+ * below a quarter of the maximum heap, so the buffer is made smaller if the heap cannot hold the configured size for
+ * every writer thread. After all files are written, the SSTables
+ * are streamed with <code>loaderCommand -d &lt;hosts&gt; &lt;folder&gt;</code>, one folder after the other.
+ * <p>
+ * Tables with user defined types are not supported. The class is only compiled with the Maven profile
+ * <code>sstable</code>, which adds cassandra-all to the build.
+ */
+public class SSTableDataLoader implements BulkDataLoader {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SSTableDataLoader.class);
+
+    private static final String INSERT_QUERY = "INSERT INTO %s.%s (%s) VALUES (%s)";
+
+    /**
+     * The part of the maximum heap the buffers of all writers may use together. A writer needs more heap than its
+     * buffer while it sorts and serializes the rows.
+     */
+    private static final int HEAP_SHARE_DIVISOR = 4;
+
+    private static final long MB = 1024 * 1024;
+
+    private final Cluster cluster;
+    private final String keyspaceName;
+    private final File workFolder;
+    private final String loaderCommand;
+    private final int bufferSizeMb;
+    private final int writerThreads;
+    private MigrationProgress progress = MigrationProgress.DISABLED;
+
+    /**
+     * Creates a new loader.
+     *
+     * @param cluster       the cluster the schema is taken from and the SSTables are streamed to
+     * @param keyspaceName  the keyspace containing the tables
+     * @param workFolder    the folder the SSTables are written to before they are streamed
+     * @param loaderCommand the bulk loader command, e.g. <code>sstableloader</code>
+     * @param bufferSizeMb  the size of the rows a writer keeps in memory before it writes an SSTable, reduced if the
+     *                      heap is too small for all writers
+     * @param writerThreads the number of data files written at the same time
+     */
+    public SSTableDataLoader(Cluster cluster, String keyspaceName, File workFolder, String loaderCommand,
+                             int bufferSizeMb, int writerThreads) {
+        this.cluster = notNull(cluster, "cluster");
+        this.keyspaceName = notNullOrEmpty(keyspaceName, "keyspaceName");
+        this.workFolder = notNull(workFolder, "workFolder");
+        this.loaderCommand = notNullOrEmpty(loaderCommand, "loaderCommand");
+        this.bufferSizeMb = Math.max(1, bufferSizeMb);
+        this.writerThreads = Math.max(1, writerThreads);
+    }
+
+    /**
+     * Sets the progress the written rows and files are reported to, first in the phase
+     * {@link MigrationProgress#WRITING} and then, for the streamed files, in the phase
+     * {@link MigrationProgress#STREAMING}.
+     *
+     * @param progress the progress of the data step
+     */
+    @Override
+    public void setProgress(MigrationProgress progress) {
+        this.progress = notNull(progress, "progress");
+    }
+
+    /**
+     * Writes the data files as SSTables and streams them into the cluster. The work folder of the run is deleted
+     * afterwards if everything succeeded and kept for inspection otherwise.
+     *
+     * @param files the data files by file name, see {@link CsvDataLoader#tableName(String)}, with a way to open them
+     * @return the number of rows loaded
+     * @throws MigrationException if a file cannot be written or the bulk loader fails
+     */
+    @Override
+    public long load(Map<String, Callable<InputStream>> files) {
+        File runFolder = new File(workFolder, keyspaceName + "-" + System.currentTimeMillis());
+        int threads = Math.min(writerThreads, Math.max(1, files.size()));
+        int bufferMb = bufferSizeMb(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                runnable -> {
+                    Thread thread = new Thread(runnable, "sstable-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        Map<String, File> tableFolders = new LinkedHashMap<>();
+        long rows = 0;
+        progress.startPhase(MigrationProgress.WRITING);
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            int index = 0;
+            for (Map.Entry<String, Callable<InputStream>> file : files.entrySet()) {
+                String table = CsvDataLoader.tableName(file.getKey());
+                // every writer gets its own folder, the bulk loader expects <keyspace>/<table> at the end of it
+                File tableFolder = new File(new File(new File(runFolder, String.valueOf(index++)), keyspaceName),
+                        table);
+                tableFolders.put(file.getKey(), tableFolder);
+                futures.add(executor.submit(() -> writeFile(file.getKey(), table, file.getValue(), tableFolder,
+                        bufferMb)));
+            }
+            for (Future<Long> future : futures) {
+                rows += future.get();
+            }
+        } catch (ExecutionException exception) {
+            Throwable cause = exception.getCause();
+            throw cause instanceof MigrationException ? (MigrationException) cause
+                    : new MigrationException("Error while writing SSTables to " + runFolder, cause);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new MigrationException("Interrupted while writing SSTables to " + runFolder, exception);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        progress.startPhase(MigrationProgress.STREAMING);
+        for (Map.Entry<String, File> tableFolder : tableFolders.entrySet()) {
+            progress.startFile(tableFolder.getKey());
+            stream(tableFolder.getValue());
+            progress.finishFile(tableFolder.getKey(), progress.getFileSize(tableFolder.getKey()));
+        }
+        FileSystemUtils.deleteRecursively(runFolder);
+        return rows;
+    }
+
+    /**
+     * Returns the buffer size of a writer, the configured size unless the writers would use more than their share
+     * of the maximum heap together.
+     */
+    private int bufferSizeMb(int threads) {
+        long maxMemory = Runtime.getRuntime().maxMemory();
+        if (maxMemory == Long.MAX_VALUE) {
+            return bufferSizeMb;
+        }
+        int limit = (int) Math.max(1, maxMemory / HEAP_SHARE_DIVISOR / threads / MB);
+        if (limit < bufferSizeMb) {
+            LOGGER.warn("Reducing the SSTable buffer from {} MB to {} MB, {} writers with {} MB each do not fit into"
+                    + " a heap of {} MB.", bufferSizeMb, limit, threads, bufferSizeMb, maxMemory / MB);
+            return limit;
+        }
+        return bufferSizeMb;
+    }
+
+    private long writeFile(String fileName, String table, Callable<InputStream> opener, File tableFolder,
+                           int bufferMb) throws Exception {
+        long start = System.currentTimeMillis();
+        TableMetadata tableMetadata = tableMetadata(table);
+        List<ColumnMetadata> columns = tableMetadata.getColumns();
+        CodecRegistry codecRegistry = cluster.getConfiguration().getCodecRegistry();
+        List<TypeCodec<Object>> codecs = new ArrayList<>(columns.size());
+        for (ColumnMetadata column : columns) {
+            if (column.getType().getName() == DataType.Name.UDT) {
+                throw new MigrationException(format("Table %s has user defined types, which cannot be loaded as"
+                        + " SSTables", table), null);
+            }
+            codecs.add(codecRegistry.codecFor(column.getType()));
+        }
+        if (!tableFolder.isDirectory() && !tableFolder.mkdirs()) {
+            throw new IOException("Unable to create folder " + tableFolder);
+        }
+        CQLSSTableWriter writer = CQLSSTableWriter.builder()
+                .inDirectory(tableFolder)
+                .forTable(tableMetadata.asCQLQuery())
+                .using(format(INSERT_QUERY, Metadata.quote(keyspaceName), Metadata.quote(tableMetadata.getName()),
+                        columns.stream().map(column -> Metadata.quote(column.getName()))
+                                .collect(Collectors.joining(", ")),
+                        columns.stream().map(column -> "?").collect(Collectors.joining(", "))))
+                .withPartitioner(FBUtilities.newPartitioner(cluster.getMetadata().getPartitioner()))
+                .withBufferSizeInMB(bufferMb)
+                .build();
+        long rows;
+        progress.startFile(fileName);
+        try (InputStream input = opener.call()) {
+            rows = CsvDataLoader.readRows(table, input, columns, codecs, (values, lineNumber) -> {
+                writer.addRow(Arrays.asList(values));
+                progress.addRows(1);
+            });
+        } finally {
+            writer.close();
+        }
+        progress.finishFile(fileName, 0);
+        LOGGER.info("Wrote {} rows of {} as SSTables for table {} within {} ms.", rows, fileName, table,
+                System.currentTimeMillis() - start);
+        return rows;
+    }
+
+    /**
+     * Streams the SSTables in the folder into the cluster with the bulk loader.
+     */
+    private void stream(File tableFolder) {
+        String hosts = cluster.getMetadata().getAllHosts().stream()
+                .map(host -> host.getAddress().getHostAddress())
+                .collect(Collectors.joining(","));
+        String command = format("%s -d %s %s", loaderCommand, hosts, tableFolder.getAbsolutePath());
+        LOGGER.info("Streaming SSTables with: {}", command);
+        long start = System.currentTimeMillis();
+        try {
+            Process process = new ProcessBuilder(command.split("\\s+")).redirectErrorStream(true).start();
+            try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = output.readLine()) != null) {
+                    LOGGER.info(line);
+                }
+            }
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                throw new MigrationException(format("Bulk loader exited with code %d while streaming %s, the"
+                        + " SSTables are kept", exitCode, tableFolder), null);
+            }
+        } catch (IOException exception) {
+            throw new MigrationException("Unable to run the bulk loader for " + tableFolder, exception);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new MigrationException("Interrupted while streaming " + tableFolder, exception);
+        }
+        LOGGER.info("Streamed {} within {} ms.", tableFolder, System.currentTimeMillis() - start);
+    }
+
+    private TableMetadata tableMetadata(String table) {
+        KeyspaceMetadata keyspace = cluster.getMetadata().getKeyspace(Metadata.quote(keyspaceName));
+        TableMetadata tableMetadata = keyspace == null ? null : keyspace.getTable(table);
+        if (tableMetadata == null) {
+            throw new MigrationException(format("Unknown table %s in keyspace %s", table, keyspaceName), null);
+        }
+        return tableMetadata;
+    }
+}
@@ -0,0 +1,62 @@
+package com.betalpha.migration;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class CsvDataLoaderTest {
+
+    @Test
+    public void splitsPlainFields() {
+        assertEquals(Arrays.asList("1", "a", ""), CsvDataLoader.splitLine("1,a,"));
+        assertEquals(Collections.singletonList(""), CsvDataLoader.splitLine(""));
+    }
+
+    @Test
+    public void quotedFieldsKeepDelimitersAndQuotes() {
+        assertEquals(Arrays.asList("1", "a, b", "say \"hi\"", ""),
+                CsvDataLoader.splitLine("1,\"a, b\",\"say \"\"hi\"\"\",\"\""));
+        assertEquals(Arrays.asList("1", "two\nlines"), CsvDataLoader.splitLine("1,\"two\nlines\""));
+    }
+
+    @Test
+    public void recordsSpanLinesWhileAQuoteIsOpen() throws IOException {
+        List<String> records = new ArrayList<>();
+        List<List<String>> fields = new ArrayList<>();
+        List<Long> lineNumbers = new ArrayList<>();
+        long count = CsvDataLoader.readRecords("users", stream("1,a\n2,\"b\nc, \"\"d\"\"\n\"\n\n3,e\n"),
+                (record, recordFields, lineNumber) -> {
+                    records.add(record);
+                    fields.add(recordFields);
+                    lineNumbers.add(lineNumber);
+                });
+        assertEquals(3, count);
+        assertEquals(Arrays.asList("1,a", "2,\"b\nc, \"\"d\"\"\n\"", "3,e"), records);
+        assertEquals(Arrays.asList("2", "b\nc, \"d\"\n"), fields.get(1));
+        assertEquals(Arrays.asList(1L, 2L, 6L), lineNumbers);
+    }
+
+    @Test(expected = MigrationException.class)
+    public void unterminatedQuoteFails() throws IOException {
+        CsvDataLoader.readRecords("users", stream("1,\"a\n2,b\n"), (record, fields, lineNumber) -> {
+        });
+    }
+
+    @Test
+    public void tableNameIgnoresChunkAndCompression() {
+        assertEquals("tradingdate", CsvDataLoader.tableName("tradingdate"));
+        assertEquals("tradingdate", CsvDataLoader.tableName("tradingdate.2.gz"));
+    }
+
+    private static ByteArrayInputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,84 @@
+package com.betalpha.migration;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class DataFileSorterTest {
+
+    private static final List<String> UNSORTED = Arrays.asList(
+            "3,first three", "1,first one", "2,\"two, quoted\"", "1,second one", "3,\"three\nover two lines\"",
+            "2,second two", "1,third one");
+
+    private static final List<String> SORTED = Arrays.asList(
+            "1,first one", "1,second one", "1,third one", "2,\"two, quoted\"", "2,second two", "3,first three",
+            "3,\"three\nover two lines\"");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void sortsInMemoryKeepingTheOrderOfEqualKeys() throws IOException {
+        assertEquals(SORTED, sort(UNSORTED, 1024 * 1024));
+    }
+
+    @Test
+    public void mergesSpillFilesKeepingTheOrderOfEqualKeys() throws IOException {
+        // every record exceeds the memory, so every record ends up in its own spill file
+        assertEquals(SORTED, sort(UNSORTED, 1));
+        // a few records per spill file
+        assertEquals(SORTED, sort(UNSORTED, 300));
+    }
+
+    @Test
+    public void spillFilesAreDeleted() throws IOException {
+        File spillFolder = temporaryFolder.newFolder("spill");
+        File source = write("users", UNSORTED);
+        DataFileSorter.sort(source, new File(temporaryFolder.getRoot(), "sorted"), 1, spillFolder, new FirstField());
+        assertEquals(0, spillFolder.list().length);
+    }
+
+    private List<String> sort(List<String> records, long memory) throws IOException {
+        File source = write("users", records);
+        File target = new File(temporaryFolder.getRoot(), "sorted");
+        long count = DataFileSorter.sort(source, target, memory, temporaryFolder.newFolder(), new FirstField());
+        assertEquals(records.size(), count);
+        String sorted = new String(Files.readAllBytes(target.toPath()), StandardCharsets.UTF_8);
+        return Arrays.asList(sorted.substring(0, sorted.length() - 1).split("\n(?=\\d)"));
+    }
+
+    private File write(String name, List<String> records) throws IOException {
+        File file = new File(temporaryFolder.newFolder(), name);
+        Files.write(file.toPath(), (String.join("\n", records) + "\n").getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    /**
+     * Sorts by the number in the first field instead of the token of the partition key.
+     */
+    private static final class FirstField implements DataFileSorter.SortKeys<Integer> {
+        @Override
+        public Integer keyOf(List<String> fields, long lineNumber) {
+            return Integer.valueOf(fields.get(0));
+        }
+
+        @Override
+        public String serialize(Integer key) {
+            return key.toString();
+        }
+
+        @Override
+        public Integer deserialize(String key) {
+            return Integer.valueOf(key);
+        }
+    }
+}
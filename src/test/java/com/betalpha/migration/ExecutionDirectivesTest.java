@@ -0,0 +1,108 @@
+package com.betalpha.migration;
+
+import com.datastax.driver.core.ConsistencyLevel;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ExecutionDirectivesTest {
+
+    @Test
+    public void parsesTheHeaderOfAScript() {
+        ExecutionDirectives directives = ExecutionDirectives.parse(Arrays.asList(
+                "-- @consistency local_quorum",
+                "",
+                "// @parallel 8",
+                "-- @timeout 2m",
+                "--@idempotent",
+                "-- @mode sstable",
+                "-- @presort true"), "V1_test.cql");
+        assertEquals(ConsistencyLevel.LOCAL_QUORUM, directives.getConsistencyLevel(ConsistencyLevel.ONE));
+        assertEquals(8, directives.getParallelism(1));
+        assertEquals(Integer.valueOf(120000), directives.getTimeoutMillis());
+        assertTrue(directives.isIdempotent());
+        assertEquals(ExecutionDirectives.DataMode.SSTABLE, directives.getDataMode());
+        assertTrue(directives.isPresort());
+    }
+
+    @Test
+    public void defaultsApplyWithoutDirectives() {
+        ExecutionDirectives directives = ExecutionDirectives.parse(Collections.emptyList(), "V1_test.cql");
+        assertEquals(ConsistencyLevel.QUORUM, directives.getConsistencyLevel(ConsistencyLevel.QUORUM));
+        assertEquals(4, directives.getParallelism(4));
+        assertNull(directives.getTimeoutMillis());
+        assertFalse(directives.isIdempotent());
+        assertEquals(ExecutionDirectives.DataMode.CQL, directives.getDataMode());
+        assertFalse(directives.isPresort());
+    }
+
+    @Test
+    public void timeoutsTakeAUnit() {
+        assertEquals(Integer.valueOf(500), timeout("500ms"));
+        assertEquals(Integer.valueOf(30000), timeout("30s"));
+        assertEquals(Integer.valueOf(30000), timeout("30"));
+        assertEquals(Integer.valueOf(Integer.MAX_VALUE), timeout("99999999999m"));
+    }
+
+    @Test
+    public void parsingStopsAtTheFirstStatement() {
+        ExecutionDirectives directives = ExecutionDirectives.parse(Arrays.asList(
+                "-- @parallel 2",
+                "CREATE TABLE users (id int PRIMARY KEY);",
+                "-- @parallel 8"), "V1_test.cql");
+        assertEquals(2, directives.getParallelism(1));
+    }
+
+    @Test
+    public void unknownDirectivesAndPlainCommentsAreIgnored() {
+        ExecutionDirectives directives = ExecutionDirectives.parse(Arrays.asList(
+                "-- @author someone",
+                "-- creates the users table",
+                "-- @parallel 3"), "V1_test.cql");
+        assertEquals(3, directives.getParallelism(1));
+    }
+
+    @Test(expected = MigrationException.class)
+    public void invalidConsistencyLevelFails() {
+        ExecutionDirectives.parse(Collections.singletonList("-- @consistency most"), "V1_test.cql");
+    }
+
+    @Test(expected = MigrationException.class)
+    public void parallelismMustBePositive() {
+        ExecutionDirectives.parse(Collections.singletonList("-- @parallel 0"), "V1_test.cql");
+    }
+
+    @Test(expected = MigrationException.class)
+    public void missingValueFails() {
+        ExecutionDirectives.parse(Collections.singletonList("-- @timeout"), "V1_test.cql");
+    }
+
+    @Test(expected = MigrationException.class)
+    public void invalidTimeoutFails() {
+        ExecutionDirectives.parse(Collections.singletonList("-- @timeout 5h"), "V1_test.cql");
+    }
+
+    @Test
+    public void specificDirectivesWin() {
+        ExecutionDirectives script = ExecutionDirectives.parse(Arrays.asList(
+                "-- @consistency all", "-- @parallel 2", "-- @idempotent"), "V1_test.cql");
+        ExecutionDirectives folder = ExecutionDirectives.parse(Arrays.asList(
+                "-- @parallel 6", "-- @mode sstable"), "data/1");
+        ExecutionDirectives combined = script.overriddenBy(folder);
+        assertEquals(ConsistencyLevel.ALL, combined.getConsistencyLevel(ConsistencyLevel.ONE));
+        assertEquals(6, combined.getParallelism(1));
+        assertTrue(combined.isIdempotent());
+        assertEquals(ExecutionDirectives.DataMode.SSTABLE, combined.getDataMode());
+    }
+
+    private static Integer timeout(String value) {
+        return ExecutionDirectives.parse(Collections.singletonList("-- @timeout " + value), "V1_test.cql")
+                .getTimeoutMillis();
+    }
+}
@@ -0,0 +1,62 @@
+package com.betalpha.migration;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class InsertStatementTest {
+
+    @Test
+    public void parsesTableColumnsAndLiterals() {
+        InsertStatement insert = InsertStatement.parse(
+                "INSERT INTO ks.users (id, \"Name\", age) VALUES (1, 'a', 3.5)");
+        assertEquals("ks.users", insert.getTable());
+        assertEquals(Arrays.asList("id", "\"Name\"", "age"), insert.getColumns());
+        assertEquals(Arrays.asList("1", "'a'", "3.5"), insert.getValues());
+        assertEquals("ks.users(id,Name,age)", insert.getShape());
+    }
+
+    @Test
+    public void literalsKeepTheirCommas() {
+        InsertStatement insert = InsertStatement.parse("insert into users (id, name, tags, props, pair, body)"
+                + " values (1, 'a, ''b''', ['x', 'y'], {'k': 'v, w'}, (1, 2), $$c, d$$)");
+        assertEquals(Arrays.asList("1", "'a, ''b'''", "['x', 'y']", "{'k': 'v, w'}", "(1, 2)", "$$c, d$$"),
+                insert.getValues());
+    }
+
+    @Test
+    public void shapeIgnoresTheCaseOfUnquotedIdentifiers() {
+        assertEquals(InsertStatement.parse("INSERT INTO Users (ID) VALUES (1)").getShape(),
+                InsertStatement.parse("insert into users (id) values (2)").getShape());
+        assertNotEquals(InsertStatement.parse("INSERT INTO \"Users\" (id) VALUES (1)").getShape(),
+                InsertStatement.parse("INSERT INTO users (id) VALUES (1)").getShape());
+    }
+
+    @Test
+    public void unbalancedLiteralsAreNotParsed() {
+        assertNull(InsertStatement.parse("INSERT INTO users (id, name) VALUES (1, 'a)"));
+        assertNull(InsertStatement.parse("INSERT INTO users (id, tags) VALUES (1, ['a')"));
+        assertNull(InsertStatement.parse("INSERT INTO users (id, body) VALUES (1, $$a)"));
+    }
+
+    @Test
+    public void valuesMustMatchTheColumns() {
+        assertNull(InsertStatement.parse("INSERT INTO users (id, name) VALUES (1)"));
+        assertNull(InsertStatement.parse("INSERT INTO users (id, name) VALUES (1, 'a', 2)"));
+        assertNull(InsertStatement.parse("INSERT INTO users (id, name) VALUES (1, )"));
+    }
+
+    @Test
+    public void onlyPlainLiteralInsertsAreParsed() {
+        assertNull(InsertStatement.parse("INSERT INTO users (id) VALUES (1) IF NOT EXISTS"));
+        assertNull(InsertStatement.parse("INSERT INTO users (id) VALUES (1) USING TTL 10"));
+        assertNull(InsertStatement.parse("INSERT INTO events (id, at) VALUES (1, now())"));
+        assertNull(InsertStatement.parse("INSERT INTO events (id, at) VALUES (1, ?)"));
+        assertNull(InsertStatement.parse("INSERT INTO events (id, at) VALUES (1, :at)"));
+        assertNull(InsertStatement.parse("UPDATE users SET name = 'a' WHERE id = 1"));
+    }
+}
@@ -0,0 +1,77 @@
+package com.betalpha.migration;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MigrationProgressTest {
+
+    @Test
+    public void estimatesOnTheBytesOfTheFiles() {
+        MigrationProgress progress = new MigrationProgress(0);
+        progress.start("V1_users.cql", 1, sizes(100, 300));
+        assertNull(progress.snapshot().get("percent"));
+
+        progress.finishFile("users.1", 100);
+        Map<String, Object> snapshot = progress.snapshot();
+        assertEquals(Double.valueOf(25.0), snapshot.get("percent"));
+        assertEquals(400L, snapshot.get("bytesTotal"));
+    }
+
+    @Test
+    public void estimatesOnTheRowsOfFinishedFilesWithoutSizes() {
+        MigrationProgress progress = new MigrationProgress(0);
+        progress.start("V1_users.cql", 1, sizes(-1, -1, -1, -1));
+        progress.addRows(10);
+        Map<String, Object> snapshot = progress.snapshot();
+        assertNull(snapshot.get("percent"));
+        assertNull(snapshot.get("etaSeconds"));
+        assertNull(snapshot.get("bytesTotal"));
+
+        progress.finishFile("users.1", 0);
+        progress.addRows(5);
+        // four files of ten rows each are expected, fifteen are done
+        assertEquals(Double.valueOf(37.5), progress.snapshot().get("percent"));
+    }
+
+    @Test
+    public void streamingIsEstimatedOnTheFiles() {
+        MigrationProgress progress = new MigrationProgress(0);
+        progress.start("V1_users.cql", 1, sizes(-1, -1, -1, -1));
+        progress.addRows(1000);
+        progress.startPhase(MigrationProgress.STREAMING);
+        progress.finishFile("users.1", 0);
+        Map<String, Object> snapshot = progress.snapshot();
+        assertEquals(MigrationProgress.STREAMING, snapshot.get("phase"));
+        assertEquals(Double.valueOf(25.0), snapshot.get("percent"));
+        assertEquals(1000L, snapshot.get("rows"));
+    }
+
+    @Test
+    public void estimateNeverExceedsTheTotal() {
+        MigrationProgress progress = new MigrationProgress(0);
+        progress.start("V1_users.cql", 1, sizes(100));
+        progress.finishFile("users.1", 150);
+        Map<String, Object> snapshot = progress.snapshot();
+        assertEquals(Double.valueOf(100.0), snapshot.get("percent"));
+        assertEquals(0L, snapshot.get("etaSeconds"));
+
+        progress.start("V1_users.cql", 1, sizes(-1, -1));
+        progress.addRows(10);
+        progress.finishFile("users.1", 0);
+        progress.addRows(30);
+        assertEquals(Double.valueOf(100.0), progress.snapshot().get("percent"));
+    }
+
+    private static Map<String, Long> sizes(long... sizes) {
+        Map<String, Long> fileSizes = new LinkedHashMap<>();
+        for (int i = 0; i < sizes.length; i++) {
+            fileSizes.put("users." + (i + 1), sizes[i]);
+        }
+        return fileSizes;
+    }
+}
@@ -0,0 +1,96 @@
+package com.betalpha.migration;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StatementRetryTest {
+
+    @Test
+    public void readsAreSafeToRetry() {
+        assertTrue(StatementRetry.isSafeToRetry("SELECT * FROM users WHERE id = 1"));
+        assertTrue(StatementRetry.isSafeToRetry("  select count(*)\nfrom users"));
+    }
+
+    @Test
+    public void conditionalSchemaChangesAreSafeToRetry() {
+        assertTrue(StatementRetry.isSafeToRetry("CREATE TABLE IF NOT EXISTS users (id int PRIMARY KEY)"));
+        assertTrue(StatementRetry.isSafeToRetry("drop table if exists users"));
+        assertFalse(StatementRetry.isSafeToRetry("CREATE TABLE users (id int PRIMARY KEY)"));
+        assertFalse(StatementRetry.isSafeToRetry("ALTER TABLE users ADD name text"));
+    }
+
+    @Test
+    public void plainWritesAreSafeToRetry() {
+        assertTrue(StatementRetry.isSafeToRetry("INSERT INTO users (id, name) VALUES (1, 'a')"));
+        assertTrue(StatementRetry.isSafeToRetry("UPDATE users SET name = 'a', age = 3 WHERE id = 1"));
+        assertTrue(StatementRetry.isSafeToRetry("UPDATE users SET tags[0] = 'a' WHERE id = 1"));
+        assertTrue(StatementRetry.isSafeToRetry("DELETE FROM users WHERE id = 1"));
+        assertTrue(StatementRetry.isSafeToRetry("DELETE name FROM users WHERE id = 1"));
+        assertTrue(StatementRetry.isSafeToRetry("DELETE FROM users WHERE id = 1 AND tags = ['a']"));
+    }
+
+    @Test
+    public void lightweightTransactionsAreNotSafeToRetry() {
+        assertFalse(StatementRetry.isSafeToRetry("INSERT INTO users (id) VALUES (1) IF NOT EXISTS"));
+        assertFalse(StatementRetry.isSafeToRetry("UPDATE users SET name = 'b' WHERE id = 1 IF name = 'a'"));
+        assertFalse(StatementRetry.isSafeToRetry("DELETE FROM users WHERE id = 1 IF EXISTS"));
+    }
+
+    @Test
+    public void relativeAssignmentsAreNotSafeToRetry() {
+        assertFalse(StatementRetry.isSafeToRetry("UPDATE counts SET hits = hits + 1 WHERE id = 1"));
+        assertFalse(StatementRetry.isSafeToRetry("UPDATE counts SET hits=hits-1 WHERE id = 1"));
+        assertFalse(StatementRetry.isSafeToRetry("UPDATE users SET tags = tags + ['a'] WHERE id = 1"));
+        assertFalse(StatementRetry.isSafeToRetry("UPDATE users SET tags = ['a'] + tags WHERE id = 1"));
+        assertFalse(StatementRetry.isSafeToRetry("UPDATE users SET name = 'a', tags = ['a'] + tags WHERE id = 1"));
+    }
+
+    @Test
+    public void removalsByListIndexAreNotSafeToRetry() {
+        assertFalse(StatementRetry.isSafeToRetry("DELETE tags[0] FROM users WHERE id = 1"));
+        assertFalse(StatementRetry.isSafeToRetry("delete name, tags [ 1 ] from users where id = 1"));
+    }
+
+    @Test
+    public void nonDeterministicWritesAreNotSafeToRetry() {
+        assertFalse(StatementRetry.isSafeToRetry("INSERT INTO events (id, at) VALUES (uuid(), 1)"));
+        assertFalse(StatementRetry.isSafeToRetry("INSERT INTO events (id, at) VALUES (1, now( ))"));
+    }
+
+    @Test
+    public void otherStatementsAreNotSafeToRetry() {
+        assertFalse(StatementRetry.isSafeToRetry("TRUNCATE users"));
+        assertFalse(StatementRetry.isSafeToRetry("BEGIN BATCH INSERT INTO users (id) VALUES (1); APPLY BATCH"));
+    }
+
+    @Test
+    public void idempotentFlagWinsOverTheQuery() {
+        Statement counter = new SimpleStatement("UPDATE counts SET hits = hits + 1 WHERE id = 1");
+        assertFalse(StatementRetry.isSafeToRetry(counter));
+        counter.setIdempotent(true);
+        assertTrue(StatementRetry.isSafeToRetry(counter));
+
+        Statement insert = new SimpleStatement("INSERT INTO users (id) VALUES (1)");
+        assertTrue(StatementRetry.isSafeToRetry(insert));
+        insert.setIdempotent(false);
+        assertFalse(StatementRetry.isSafeToRetry(insert));
+    }
+
+    @Test
+    public void batchesAreSafeToRetryIfAllStatementsAre() {
+        BatchStatement batch = new BatchStatement();
+        batch.add(new SimpleStatement("INSERT INTO users (id) VALUES (1)"));
+        batch.add(new SimpleStatement("DELETE FROM users WHERE id = 2"));
+        assertTrue(StatementRetry.isSafeToRetry(batch));
+
+        batch.add(new SimpleStatement("UPDATE counts SET hits = hits + 1 WHERE id = 1"));
+        assertFalse(StatementRetry.isSafeToRetry(batch));
+        batch.setIdempotent(true);
+        assertTrue(StatementRetry.isSafeToRetry(batch));
+    }
+}
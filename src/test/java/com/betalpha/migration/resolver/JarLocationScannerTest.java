@@ -0,0 +1,82 @@
+package com.betalpha.migration.resolver;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JarLocationScannerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void findsResourcesBelowTheBootClassesOfAJar() throws IOException {
+        File jar = jar("BOOT-INF/classes/cassandra/V1_users.cql", "BOOT-INF/classes/cassandra/data/1/users",
+                "BOOT-INF/classes/application.yml", "cassandra/V9_outside.cql");
+        JarLocationScanner scanner = new JarLocationScanner();
+        assertEquals(new TreeSet<>(Arrays.asList("cassandra/V1_users.cql", "cassandra/data/1/users")),
+                scanner.findResourceNames("cassandra", url(jar, "BOOT-INF/classes!/cassandra")));
+        assertEquals(Collections.singleton("cassandra/data/1/users"),
+                scanner.findResourceNames("cassandra/data/", url(jar, "BOOT-INF/classes!/cassandra/data")));
+    }
+
+    @Test
+    public void findsResourcesAtTheRootOfAJar() throws IOException {
+        File jar = jar("cassandra/V1_users.cql", "cassandra/V2_orders.cql", "other/V3_other.cql");
+        assertEquals(new TreeSet<>(Arrays.asList("cassandra/V1_users.cql", "cassandra/V2_orders.cql")),
+                new JarLocationScanner().findResourceNames("/cassandra/", url(jar, "cassandra")));
+    }
+
+    @Test
+    public void scansLocationsOutsideTheIndexedRoot() throws IOException {
+        File jar = jar("cassandra/V1_users.cql", "scripts/V1_other.cql");
+        assertEquals(Collections.singleton("scripts/V1_other.cql"),
+                new JarLocationScanner().findResourceNames("scripts", url(jar, "scripts")));
+    }
+
+    @Test
+    public void skipsNestedJarsAndOtherProtocols() throws IOException {
+        File jar = jar("BOOT-INF/lib/scripts.jar");
+        JarLocationScanner scanner = new JarLocationScanner();
+        assertTrue(scanner.findResourceNames("cassandra",
+                url(jar, "BOOT-INF/lib/scripts.jar!/cassandra")).isEmpty());
+        assertTrue(scanner.findResourceNames("cassandra", temporaryFolder.getRoot().toURI().toURL()).isEmpty());
+    }
+
+    @Test
+    public void forUrlPicksTheScannerByProtocol() throws IOException {
+        File jar = jar("cassandra/V1_users.cql");
+        assertTrue(ClassPathLocationScanner.forUrl(url(jar, "cassandra")) instanceof JarLocationScanner);
+        assertTrue(ClassPathLocationScanner.forUrl(temporaryFolder.getRoot().toURI().toURL())
+                instanceof FileSystemLocationScanner);
+    }
+
+    private File jar(String... entries) throws IOException {
+        File jar = temporaryFolder.newFile();
+        try (JarOutputStream output = new JarOutputStream(new FileOutputStream(jar))) {
+            for (String entry : entries) {
+                output.putNextEntry(new JarEntry(entry));
+                output.write('x');
+                output.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    private static URL url(File jar, String location) throws IOException {
+        return new URL("jar:" + jar.toURI() + "!/" + location);
+    }
+}